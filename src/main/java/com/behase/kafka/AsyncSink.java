@@ -0,0 +1,93 @@
+package com.behase.kafka;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Base of sinks which do their work on an own thread, so that a slow sink does not delay the tick or
+ * the other sinks. At most maxPending jobs wait, the oldest one is dropped beyond that.
+ * The thread is started on the first job, and again after {@link #close()}.
+ */
+public abstract class AsyncSink implements MetricsSink {
+	private static final Logger LOG = LoggerFactory.getLogger(AsyncSink.class);
+
+	protected final String name;
+	private int maxPending = 2;
+	private ThreadPoolExecutor executor;
+
+	protected AsyncSink(String name) {
+		this.name = name;
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	public void setMaxPending(int maxPending) {
+		this.maxPending = maxPending;
+	}
+
+	public synchronized void submit(Runnable job) {
+		if (executor == null) {
+			executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+					new ArrayBlockingQueue<Runnable>(Math.max(1, maxPending)),
+					new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread thread = new Thread(r, "elasticsearch-reporter-" + name);
+							thread.setDaemon(true);
+							return thread;
+						}
+					},
+					new RejectedExecutionHandler() {
+						@Override
+						public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+							if (executor.isShutdown()) {
+								return;
+							}
+							LOG.warn("Sink '{}' is behind, dropping the oldest pending tick.", name);
+							executor.getQueue().poll();
+							executor.execute(r);
+						}
+					});
+		}
+		executor.execute(job);
+	}
+
+	/**
+	 * Stop the thread. Pending jobs are dropped.
+	 */
+	@Override
+	public synchronized void close() {
+		if (executor != null) {
+			executor.shutdownNow();
+			executor = null;
+		}
+	}
+
+	/**
+	 * Stop the thread after the pending jobs, waiting at most timeoutMillis.
+	 */
+	protected synchronized void closeGracefully(long timeoutMillis) {
+		if (executor == null) {
+			return;
+		}
+		executor.shutdown();
+		try {
+			if (!executor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS)) {
+				LOG.warn("Sink '{}' did not finish its pending jobs in {}ms.", name, timeoutMillis);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		executor.shutdownNow();
+		executor = null;
+	}
+}
@@ -0,0 +1,141 @@
+package com.behase.kafka;
+
+/**
+ * Open addressing map of key to the previous cumulative count and its time (primitive long, no boxing),
+ * used to compute per-interval deltas without resetting the live metrics. The time is kept per key, as a key
+ * may skip ticks (e.g. an instance outside the top K).
+ * <p>
+ * Entries which are not touched for a number of generations (ticks) are removed by {@link #sweep(int)}.
+ * Not thread-safe, it is used by the tick thread only.
+ */
+public class DeltaTracker {
+	public static final long NO_PREVIOUS = Long.MIN_VALUE;
+
+	private static final float LOAD_FACTOR = 0.5f;
+
+	private Object[] keys;
+	private long[] values;
+	private long[] times;
+	private int[] generations;
+	private int size = 0;
+	private int generation = 0;
+	private long lastIntervalMillis = 0;
+
+	public DeltaTracker() {
+		this(64);
+	}
+
+	public DeltaTracker(int initialCapacity) {
+		int capacity = Integer.highestOneBit(Math.max(16, (int)(initialCapacity / LOAD_FACTOR)) - 1) << 1;
+		keys = new Object[capacity];
+		values = new long[capacity];
+		times = new long[capacity];
+		generations = new int[capacity];
+	}
+
+	/**
+	 * Store current as the previous value of key.
+	 *
+	 * @return current minus the previous value, or {@link #NO_PREVIOUS} if key is seen for the first time
+	 */
+	public long delta(Object key, long current) {
+		return delta(key, current, 0);
+	}
+
+	/**
+	 * Store current at timeMillis as the previous value of key. The time since the previous value is given by
+	 * {@link #getLastIntervalMillis()}.
+	 *
+	 * @return current minus the previous value, or {@link #NO_PREVIOUS} if key is seen for the first time
+	 */
+	public long delta(Object key, long current, long timeMillis) {
+		int slot = slot(key);
+		long delta;
+		if (keys[slot] == null) {
+			keys[slot] = key;
+			delta = NO_PREVIOUS;
+			lastIntervalMillis = 0;
+			if (++size > keys.length * LOAD_FACTOR) {
+				values[slot] = current;
+				times[slot] = timeMillis;
+				generations[slot] = generation;
+				resize(keys.length * 2, -1);
+				return delta;
+			}
+		} else {
+			delta = current - values[slot];
+			lastIntervalMillis = timeMillis - times[slot];
+		}
+		values[slot] = current;
+		times[slot] = timeMillis;
+		generations[slot] = generation;
+		return delta;
+	}
+
+	/**
+	 * @return time between the last {@link #delta(Object, long, long)} and the previous value of its key,
+	 * 0 if there was no previous value
+	 */
+	public long getLastIntervalMillis() {
+		return lastIntervalMillis;
+	}
+
+	/**
+	 * @return the previous value of key, or {@link #NO_PREVIOUS}
+	 */
+	public long get(Object key) {
+		int slot = slot(key);
+		return keys[slot] == null ? NO_PREVIOUS : values[slot];
+	}
+
+	public void nextGeneration() {
+		generation++;
+	}
+
+	/**
+	 * Remove entries which are not touched in the last maxAge generations.
+	 */
+	public void sweep(int maxAge) {
+		resize(keys.length, maxAge);
+	}
+
+	public int size() {
+		return size;
+	}
+
+	private int slot(Object key) {
+		int mask = keys.length - 1;
+		int slot = (int)ElasticsearchReporter.mix64(key.hashCode()) & mask;
+		while (keys[slot] != null && !keys[slot].equals(key)) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	/**
+	 * @param maxAge entries older than this are dropped, negative keeps all
+	 */
+	private void resize(int capacity, int maxAge) {
+		Object[] oldKeys = keys;
+		long[] oldValues = values;
+		long[] oldTimes = times;
+		int[] oldGenerations = generations;
+		keys = new Object[capacity];
+		values = new long[capacity];
+		times = new long[capacity];
+		generations = new int[capacity];
+		size = 0;
+
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldKeys[i] == null || (maxAge >= 0 && generation - oldGenerations[i] > maxAge)) {
+				continue;
+			}
+			int slot = slot(oldKeys[i]);
+			keys[slot] = oldKeys[i];
+			values[slot] = oldValues[i];
+			times[slot] = oldTimes[i];
+			generations[slot] = oldGenerations[i];
+			size++;
+		}
+	}
+}
@@ -6,7 +6,6 @@ import com.yammer.metrics.core.Counter;
 import com.yammer.metrics.core.Gauge;
 import com.yammer.metrics.core.Histogram;
 import com.yammer.metrics.core.Metered;
-import com.yammer.metrics.core.Metric;
 import com.yammer.metrics.core.MetricName;
 import com.yammer.metrics.core.MetricPredicate;
 import com.yammer.metrics.core.MetricProcessor;
@@ -16,24 +15,35 @@ import com.yammer.metrics.core.VirtualMachineMetrics;
 import com.yammer.metrics.reporting.AbstractPollingReporter;
 import com.yammer.metrics.stats.Snapshot;
 import lombok.Cleanup;
+import org.apache.kafka.common.metrics.KafkaMetric;
 import org.joda.time.DateTime;
+import org.joda.time.DateTimeUtils;
 import org.joda.time.format.ISODateTimeFormat;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.io.OutputStreamWriter;
 import java.io.StringWriter;
+import java.io.UnsupportedEncodingException;
 import java.io.Writer;
 import java.net.HttpURLConnection;
 import java.net.InetAddress;
-import java.net.URL;
+import java.net.NetworkInterface;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.SortedMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.TimeoutException;
 
 public class ElasticsearchReporter extends AbstractPollingReporter implements MetricProcessor<DateTime> {
 	private static final Logger LOG = LoggerFactory.getLogger(ElasticsearchReporter.class);
@@ -42,9 +52,21 @@ public class ElasticsearchReporter extends AbstractPollingReporter implements Me
 	public static final String DEFAULT_INDEX_PREFIX = "elasticsearch-reporter-default";
 	public static final String DEFAULT_TIMESTAMP_FIELD_NAME = "@timestamp";
 	public static final String DEFAULT_NAME = "elasticsearch-reporter";
+	public static final String UNKNOWN_HOSTNAME = "unknown";
+	public static final long HOSTNAME_WAIT_MILLIS = 1000;
+	public static final long SWEEP_INTERVAL_MILLIS = TimeUnit.HOURS.toMillis(1);
+	public static final int DELTA_MAX_AGE = 60;
 
 	protected static final String ES_BULK_INDEX_RAW_FORMAT = "{\"index\":{\"_index\":\"%s\",\"_type\":\"%s\"}}";
 	protected static final String ES_BULK_INDEX_WITH_TTL_RAW_FORMAT = "{\"index\":{\"_index\":\"%s\",\"_type\":\"%s\",\"_ttl\":\"%s\"}}";
+	protected static final String ES_BULK_CREATE_RAW_FORMAT = "{\"create\":{\"_index\":\"%s\",\"_type\":\"%s\",\"_id\":\"";
+	protected static final String ES_BULK_CREATE_WITH_TTL_RAW_FORMAT = "{\"create\":{\"_index\":\"%s\",\"_type\":\"%s\",\"_ttl\":\"%s\",\"_id\":\"";
+	protected static final String ES_BULK_CREATE_SUFFIX = "\"}}";
+
+	private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+	private static final char[] ID_CHARS =
+			"ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".toCharArray();
 
 	protected final String nodes;
 	protected final MetricPredicate predicate;
@@ -53,18 +75,85 @@ public class ElasticsearchReporter extends AbstractPollingReporter implements Me
 	protected final String ttl;
 	protected final boolean printVmMetrics;
 	protected final boolean enableReset;
+	protected final String name;
 
-	protected final List<String> nodesList = new ArrayList<String>();
+	protected final ElasticsearchTarget primary;
+	protected volatile boolean primaryEnabled = true;
+	protected final List<MetricsSink> sinks = new CopyOnWriteArrayList<MetricsSink>();
+	protected boolean sinksPrepared = false;
 	protected StringWriter buffer = new StringWriter();
-	protected AtomicInteger nextHostIndex = new AtomicInteger();
-	protected String hostname;
 	protected final JsonFactory jsonFactory = new JsonFactory();
 	protected final VirtualMachineMetrics vm = VirtualMachineMetrics.getInstance();
+	protected JvmMetricsCollector jvmCollector = new JvmMetricsCollector(vm, 1);
+	protected final MetricIndex metricIndex;
+	protected boolean metricIndexRegistered = false;
+	protected final Map<org.apache.kafka.common.MetricName, KafkaMetric> kafkaMetrics =
+			new ConcurrentHashMap<org.apache.kafka.common.MetricName, KafkaMetric>();
+
+	// tick scheduling
+	protected boolean alignTicks = false;
+	protected String phaseKey;
+	protected String localAddresses;
+	protected long periodMillis;
+	protected ScheduledFuture<?> firstTickFuture;
+	protected ScheduledFuture<?> tickFuture;
+
+	// host identity
+	protected volatile String hostname = UNKNOWN_HOSTNAME;
+	protected volatile boolean hostnameResolved = false;
+	protected FutureTask<String> hostnameLookup;
+	protected boolean hostnameAwaited = false;
+
+	// index template
+	protected boolean installTemplate = false;
+	protected boolean templateInstalled = false;
+	protected int templateNumberOfShards = 1;
+	protected String templateRefreshInterval = "30s";
+
+	// index rotation
+	protected IndexGranularity indexGranularity = IndexGranularity.DAILY;
+	protected long retentionMillis = 0;
+	protected long lastSweepMillis = 0;
+	protected long indexEpochMillis = Long.MIN_VALUE;
+	protected String index;
+	protected String indexSuffix;
+	protected final Map<String, String> actionLines = new HashMap<String, String>();
+
+	// gauge evaluation
+	protected GaugeEvaluator gaugeEvaluator;
+
+	// delta mode
+	protected boolean enableDelta = false;
+	protected final DeltaTracker deltaTracker = new DeltaTracker();
+	protected long deltaTickMillis = Long.MIN_VALUE;
+	protected int deltaTicks = 0;
+
+	// top K
+	protected TopKSelector topKSelector;
+
+	// profiling
+	protected MetricProfiler profiler;
+	protected int profileInterval;
+	protected int ticksSinceProfile = 0;
+
+	// pull endpoint
+	protected SnapshotServer snapshotServer;
+	protected StringWriter snapshotBuffer = new StringWriter();
+
+	// byte/doc budget
+	protected LoadShedder loadShedder;
+	protected LoadShedder.Priority priority = LoadShedder.Priority.CRITICAL;
+	protected boolean shedding = false;
+	protected long bufferedLength = 0;
+
+	// deterministic ids
+	protected boolean deterministicIds = false;
 
 	public ElasticsearchReporter(MetricsRegistry registry, String nodes, MetricPredicate predicate, String indexPrefix,
 			String timestampFieldName, String ttl, boolean printVmMetrics, boolean enableReset, String name) {
 		super(registry, name == null ? DEFAULT_NAME : name);
 
+		this.name = name == null ? DEFAULT_NAME : name;
 		this.nodes = nodes;
 		this.predicate = predicate == null ? DEFAULT_METRIC_PREDICATE : predicate;
 		this.indexPrefix = indexPrefix == null ? DEFAULT_INDEX_PREFIX : indexPrefix;
@@ -72,28 +161,344 @@ public class ElasticsearchReporter extends AbstractPollingReporter implements Me
 		this.ttl = ttl;
 		this.printVmMetrics = printVmMetrics;
 		this.enableReset = enableReset;
+		this.metricIndex = new MetricIndex(this.predicate);
+
+		this.primary = new ElasticsearchTarget(this.name, nodes == null ? "" : nodes, this.indexPrefix);
+	}
 
-		String[] nodesArray = nodes.split(",");
-		for (String node : nodesArray) {
-			nodesList.add(node.trim());
+	/**
+	 * Report this hostname, the local host name is not resolved.
+	 */
+	public void setHostname(String hostname) {
+		this.hostname = replaceSpecialChars(hostname);
+		hostnameResolved = true;
+	}
+
+	/**
+	 * Hostname reported until the local host name is resolved (e.g. "broker-1"). Default is "unknown".
+	 */
+	public void setProvisionalHostname(String hostname) {
+		if (!hostnameResolved) {
+			this.hostname = replaceSpecialChars(hostname);
 		}
+	}
+
+	/**
+	 * Resolve the local host name on a daemon thread, as reverse DNS may block for seconds.
+	 */
+	public synchronized void resolveHostname() {
+		if (hostnameResolved || hostnameLookup != null) {
+			return;
+		}
+		hostnameLookup = new FutureTask<String>(new Callable<String>() {
+			@Override
+			public String call() {
+				return lookupHostname();
+			}
+		});
+		Thread thread = new Thread(hostnameLookup, "elasticsearch-reporter-hostname");
+		thread.setDaemon(true);
+		thread.start();
+	}
 
-		hostname = "unknown";
+	/**
+	 * Take the resolved local host name if the lookup has completed within timeoutMillis.
+	 */
+	protected void awaitHostname(long timeoutMillis) {
+		FutureTask<String> lookup;
+		synchronized (this) {
+			lookup = hostnameLookup;
+		}
+		if (hostnameResolved || lookup == null) {
+			return;
+		}
+		try {
+			String resolved = replaceSpecialChars(lookup.get(timeoutMillis, TimeUnit.MILLISECONDS));
+			if (!hostnameResolved) {
+				if (hostnameAwaited && !resolved.equals(hostname)) {
+					// the series (and deterministic ids) of the ticks reported so far are split from the rest
+					LOG.warn("Resolved hostname '{}' after reporting as '{}'. "
+							+ "Set kafka.elasticsearch.metrics.hostname to report a stable hostname.", resolved, hostname);
+				} else {
+					LOG.info("Resolved hostname '{}'", resolved);
+				}
+				hostname = resolved;
+				hostnameResolved = true;
+			}
+		} catch (TimeoutException e) {
+			LOG.debug("Hostname is not resolved yet, reporting '{}'", hostname);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			LOG.warn("Fail! Resolving hostname.", e);
+			hostnameResolved = true;
+		}
+	}
+
+	/**
+	 * @return the addresses of the local network interfaces, sorted and comma separated. Unlike the hostname,
+	 * no DNS is involved, and it differs between hosts unless all of them are loopback
+	 */
+	public static String localAddresses() {
+		List<String> addresses = new ArrayList<String>();
+		try {
+			Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+			while (interfaces != null && interfaces.hasMoreElements()) {
+				NetworkInterface networkInterface = interfaces.nextElement();
+				if (!networkInterface.isUp() || networkInterface.isLoopback()) {
+					continue;
+				}
+				Enumeration<InetAddress> inetAddresses = networkInterface.getInetAddresses();
+				while (inetAddresses.hasMoreElements()) {
+					InetAddress address = inetAddresses.nextElement();
+					if (!address.isLoopbackAddress() && !address.isLinkLocalAddress()) {
+						addresses.add(address.getHostAddress());
+					}
+				}
+			}
+		} catch (Exception e) {
+			LOG.debug("Fail! Listing local addresses.", e);
+		}
+		Collections.sort(addresses);
+		StringBuilder sb = new StringBuilder();
+		for (String address : addresses) {
+			if (sb.length() > 0) {
+				sb.append(',');
+			}
+			sb.append(address);
+		}
+		return sb.toString();
+	}
+
+	protected static String lookupHostname() {
 		try {
 			InetAddress inetAddress = InetAddress.getLocalHost();
-			hostname = inetAddress.getCanonicalHostName();
+			String hostname = inetAddress.getCanonicalHostName();
 			if (hostname == null || hostname.length() == 0) {
 				hostname = inetAddress.getHostAddress();
 			}
+			return hostname;
 		} catch (Exception e) {
+			return UNKNOWN_HOSTNAME;
+		}
+	}
+
+	/**
+	 * If true, ticks are scheduled at a fixed rate with a per-host phase offset within the polling interval,
+	 * and timestamps are truncated to the interval boundary.
+	 */
+	public void setAlignTicks(boolean alignTicks) {
+		this.alignTicks = alignTicks;
+	}
+
+	/**
+	 * Key used to derive the phase offset (e.g. broker id). Hostname is used if this is empty.
+	 */
+	public void setPhaseKey(String phaseKey) {
+		this.phaseKey = phaseKey;
+	}
+
+	/**
+	 * If true, the index template for indexPrefix* is put before the first bulk request.
+	 */
+	public void setInstallTemplate(boolean installTemplate) {
+		this.installTemplate = installTemplate;
+	}
+
+	public void setTemplateNumberOfShards(int templateNumberOfShards) {
+		this.templateNumberOfShards = templateNumberOfShards;
+	}
+
+	public void setTemplateRefreshInterval(String templateRefreshInterval) {
+		this.templateRefreshInterval = templateRefreshInterval;
+	}
+
+	public void setIndexGranularity(IndexGranularity indexGranularity) {
+		this.indexGranularity = indexGranularity;
+	}
+
+	/**
+	 * Indices older than this are deleted by name. 0 disables the sweeper.
+	 */
+	public void setRetentionMillis(long retentionMillis) {
+		this.retentionMillis = retentionMillis;
+	}
+
+	/**
+	 * Evaluate gauges with a time budget. See {@link GaugeEvaluator}.
+	 */
+	public void setGaugeEvaluator(GaugeEvaluator gaugeEvaluator) {
+		this.gaugeEvaluator = gaugeEvaluator;
+	}
+
+	/**
+	 * If true, deltas and rates of counts are computed by the reporter, and metrics are never reset
+	 * (enableReset is ignored).
+	 */
+	public void setEnableDelta(boolean enableDelta) {
+		this.enableDelta = enableDelta;
+	}
+
+	/**
+	 * JVM memory pools and thread states are collected every this number of ticks.
+	 */
+	public void setVmExpensiveInterval(int vmExpensiveInterval) {
+		this.jvmCollector = new JvmMetricsCollector(vm, vmExpensiveInterval);
+	}
+
+	/**
+	 * Serve the documents of the last tick also from a local HTTP endpoint.
+	 */
+	public void setSnapshotServer(SnapshotServer snapshotServer) {
+		this.snapshotServer = snapshotServer;
+		this.snapshotBuffer = new StringWriter();
+	}
+
+	/**
+	 * Limit the bytes and documents sent per tick, shedding lower priorities first.
+	 */
+	public void setLoadShedder(LoadShedder loadShedder) {
+		this.loadShedder = loadShedder;
+	}
+
+	/**
+	 * Index documents with deterministic ids and the "create" action, so that retries and replays are idempotent.
+	 */
+	public void setDeterministicIds(boolean deterministicIds) {
+		this.deterministicIds = deterministicIds;
+		this.actionLines.clear();
+		primary.setIdempotent(deterministicIds);
+		sinksPrepared = false;
+	}
+
+	/**
+	 * Retry policy of the primary target. See {@link ElasticsearchTarget#setRetryPolicy(int, long)}.
+	 */
+	public void setRetryPolicy(int maxRetries, long backoffMillis) {
+		primary.setRetryPolicy(maxRetries, backoffMillis);
+	}
+
+	/**
+	 * Write every tick also to a sink, e.g. another cluster ({@link ElasticsearchTarget}) or files
+	 * ({@link NdjsonFileSink}). The tick is serialized once and the same bytes are given to every sink.
+	 * With sinks, the action lines have no _index, and Elasticsearch targets post to /{their index}/_bulk.
+	 */
+	public void addSink(MetricsSink sink) {
+		sinks.add(sink);
+		actionLines.clear();
+		sinksPrepared = false;
+	}
+
+	/**
+	 * If false, nothing is sent to the primary nodes (e.g. to keep metrics off the network during an incident).
+	 * The other sinks are not affected. Can be changed while running.
+	 */
+	public void setPrimaryEnabled(boolean primaryEnabled) {
+		this.primaryEnabled = primaryEnabled;
+	}
+
+	public boolean isPrimaryEnabled() {
+		return primaryEnabled;
+	}
+
+	/**
+	 * Report only the top K instances of high-cardinality metric families. See {@link TopKSelector}.
+	 */
+	public void setTopKSelector(TopKSelector topKSelector) {
+		this.topKSelector = topKSelector;
+	}
+
+	/**
+	 * Measure the cost per metric, and report the top N as "profile" documents every profileInterval ticks.
+	 */
+	public void setProfiler(MetricProfiler profiler, int profileInterval) {
+		this.profiler = profiler;
+		this.profileInterval = profileInterval;
+	}
+
+	public MetricProfiler getProfiler() {
+		return profiler;
+	}
+
+	/**
+	 * Start ticking, the first tick runs immediately. Can be called again after {@link #stop()}.
+	 */
+	@Override
+	public synchronized void start(long period, TimeUnit unit) {
+		stop();
+		periodMillis = unit.toMillis(period);
+		resolveHostname();
+
+		// AbstractPollingReporter's executor is private, but the registry hands out the same pool for our name.
+		final ScheduledExecutorService executor = getMetricsRegistry().newScheduledThreadPool(1, name);
+		if (!alignTicks || periodMillis <= 0) {
+			tickFuture = executor.scheduleWithFixedDelay(this, 0, period, unit);
+			return;
+		}
+
+		final long initialDelay = initialDelayMillis(System.currentTimeMillis());
+		LOG.info("Schedule ticks every {}ms with phase offset {}ms", periodMillis, phaseOffsetMillis());
+		firstTickFuture = executor.schedule(this, 0, TimeUnit.MILLISECONDS);
+		tickFuture = executor.scheduleAtFixedRate(this, initialDelay, periodMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stop ticking. Unlike {@link #shutdown()}, the thread, sinks, connections and state (metric index, deltas,
+	 * caches) are kept, so that start is cheap and the deltas continue.
+	 */
+	public synchronized void stop() {
+		if (firstTickFuture != null) {
+			firstTickFuture.cancel(false);
+			firstTickFuture = null;
+		}
+		if (tickFuture != null) {
+			tickFuture.cancel(false);
+			tickFuture = null;
+		}
+	}
+
+	@Override
+	public void shutdown() {
+		stop();
+		getMetricsRegistry().removeListener(metricIndex);
+		metricIndexRegistered = false;
+		if (gaugeEvaluator != null) {
+			gaugeEvaluator.shutdown();
+		}
+		for (MetricsSink sink : sinks) {
+			sink.close();
 		}
-		hostname = replaceSpecialChars(hostname);
+		primary.close();
+		super.shutdown();
 	}
 
 	@Override
 	public void run() {
-		DateTime epoch = DateTime.now();
+		// taken before anything which may block, so that a late tick still reports its own interval
+		DateTime epoch = tickEpoch(DateTimeUtils.currentTimeMillis());
+		if (!hostnameResolved) {
+			// the first tick waits a little for the lookup, the others take it when it is done
+			awaitHostname(hostnameAwaited ? 0 : HOSTNAME_WAIT_MILLIS);
+			hostnameAwaited = true;
+		}
+		if (installTemplate && !templateInstalled && primaryEnabled) {
+			templateInstalled = installIndexTemplate();
+		}
+		if (!sinksPrepared) {
+			prepareSinks();
+		}
+
 		printRegularMetrics(epoch);
+		printKafkaMetrics(epoch);
+		priority = LoadShedder.Priority.CRITICAL;
+		if (profiler != null && ++ticksSinceProfile >= profileInterval) {
+			ticksSinceProfile = 0;
+			try {
+				printProfile(epoch);
+			} catch (Exception ignored) {
+				LOG.error("Error printing profile:", ignored);
+			}
+		}
 		if (printVmMetrics) {
 			try {
 				printVmMetrics(epoch);
@@ -101,7 +506,29 @@ public class ElasticsearchReporter extends AbstractPollingReporter implements Me
 				LOG.error("Error printing vm metrics:", ignored);
 			}
 		}
+		if (loadShedder != null) {
+			applyBudget(epoch);
+		}
+		if (snapshotServer != null) {
+			publishSnapshot(epoch);
+		}
 		sendBulkRequest();
+
+		if (retentionMillis > 0 && System.currentTimeMillis() - lastSweepMillis >= SWEEP_INTERVAL_MILLIS) {
+			lastSweepMillis = System.currentTimeMillis();
+			sweepExpiredIndices(epoch);
+		}
+	}
+
+	/**
+	 * Report a metric of org.apache.kafka.common.metrics (new clients) in addition to the registry.
+	 */
+	public void addKafkaMetric(KafkaMetric metric) {
+		kafkaMetrics.put(metric.metricName(), metric);
+	}
+
+	public void removeKafkaMetric(KafkaMetric metric) {
+		kafkaMetrics.remove(metric.metricName());
 	}
 
 	@Override
@@ -113,31 +540,45 @@ public class ElasticsearchReporter extends AbstractPollingReporter implements Me
 		json.writeNumberField("m5_rate", metered.fiveMinuteRate());
 		json.writeNumberField("m15_rate", metered.fifteenMinuteRate());
 		json.writeNumberField("mean_rate", metered.meanRate());
-		json.writeNumberField("count", metered.count());
+		final long count = metered.count();
+		json.writeNumberField("count", count);
+		if (enableDelta) {
+			writeDelta(json, metricName, count, true, epoch);
+		}
 
 		json.writeEndObject();
 		json.flush();
-		addReportBuffer("meter", writer.toString(), epoch);
+		addReportBuffer("meter", writer.toString(), nameHash(metricName), epoch);
 	}
 
 	@Override
-	public void processCounter(MetricName metricName, Counter counter, DateTime epoch) throws Exception {
+	public void processCounter(MetricName metricName, final Counter counter, DateTime epoch) throws Exception {
 		@Cleanup StringWriter writer = new StringWriter();
 		@Cleanup JsonGenerator json = createAndInitJsonGenerator(writer, metricName, epoch);
 
-		json.writeNumberField("count", counter.count());
-		if (enableReset) {
-			counter.clear();
+		final long count = counter.count();
+		json.writeNumberField("count", count);
+		Runnable reset = null;
+		if (enableDelta) {
+			writeDelta(json, metricName, count, false, epoch);
+		} else if (enableReset) {
+			// the reported count is taken off once the document is admitted, a shed one is reported later
+			reset = new Runnable() {
+				@Override
+				public void run() {
+					counter.dec(count);
+				}
+			};
 		}
 
 		json.writeEndObject();
 		json.flush();
 
-		addReportBuffer("counter", writer.toString(), epoch);
+		addReportBuffer("counter", writer.toString(), nameHash(metricName), epoch, reset);
 	}
 
 	@Override
-	public void processHistogram(MetricName metricName, Histogram histogram, DateTime epoch) throws Exception {
+	public void processHistogram(MetricName metricName, final Histogram histogram, DateTime epoch) throws Exception {
 		@Cleanup StringWriter writer = new StringWriter();
 		@Cleanup JsonGenerator json = createAndInitJsonGenerator(writer, metricName, epoch);
 
@@ -153,15 +594,25 @@ public class ElasticsearchReporter extends AbstractPollingReporter implements Me
 		json.writeNumberField("p98", snapshot.get98thPercentile());
 		json.writeNumberField("p99", snapshot.get99thPercentile());
 		json.writeNumberField("p999", snapshot.get999thPercentile());
-		json.writeNumberField("count", histogram.count());
+		final long count = histogram.count();
+		json.writeNumberField("count", count);
 		json.writeNumberField("sum", histogram.sum());
-		if (enableReset) {
-			histogram.clear();
+		Runnable reset = null;
+		if (enableDelta) {
+			writeDelta(json, metricName, count, true, epoch);
+		} else if (enableReset) {
+			// cleared once the document is admitted, a shed one is reported later
+			reset = new Runnable() {
+				@Override
+				public void run() {
+					histogram.clear();
+				}
+			};
 		}
 
 		json.writeEndObject();
 		json.flush();
-		addReportBuffer("histogram", writer.toString(), epoch);
+		addReportBuffer("histogram", writer.toString(), nameHash(metricName), epoch, reset);
 	}
 
 	@Override
@@ -181,7 +632,11 @@ public class ElasticsearchReporter extends AbstractPollingReporter implements Me
 		json.writeNumberField("p98", snapshot.get98thPercentile());
 		json.writeNumberField("p99", snapshot.get99thPercentile());
 		json.writeNumberField("p999", snapshot.get999thPercentile());
-		json.writeNumberField("count", timer.count());
+		final long count = timer.count();
+		json.writeNumberField("count", count);
+		if (enableDelta) {
+			writeDelta(json, metricName, count, true, epoch);
+		}
 		json.writeNumberField("m1_rate", timer.oneMinuteRate());
 		json.writeNumberField("m5_rate", timer.fiveMinuteRate());
 		json.writeNumberField("m15_rate", timer.fifteenMinuteRate());
@@ -189,18 +644,41 @@ public class ElasticsearchReporter extends AbstractPollingReporter implements Me
 
 		json.writeEndObject();
 		json.flush();
-		addReportBuffer("timer", writer.toString(), epoch);
+		addReportBuffer("timer", writer.toString(), nameHash(metricName), epoch);
 	}
 
 	@Override
 	public void processGauge(MetricName metricName, Gauge<?> gauge, DateTime epoch) throws Exception {
-		Object value = gauge.value();
+		final GaugeEvaluator.State state = evaluateGauge(gauge);
+		writeGauge(metricName, state == null ? gauge.value() : state.getValue(), state, epoch);
+	}
+
+	/**
+	 * @return state of the gauge evaluated through the GaugeEvaluator, null if there is no GaugeEvaluator
+	 * (then the caller evaluates the gauge itself)
+	 */
+	protected GaugeEvaluator.State evaluateGauge(Gauge<?> gauge) {
+		return gaugeEvaluator == null ? null : gaugeEvaluator.evaluate(gauge);
+	}
+
+	/**
+	 * @param state state of the evaluation, null if the gauge was not evaluated through the GaugeEvaluator
+	 */
+	protected void writeGauge(MetricName metricName, Object value, GaugeEvaluator.State state, DateTime epoch)
+			throws Exception {
 		if (value == null) {
 			return;
 		}
 		@Cleanup StringWriter writer = new StringWriter();
 		@Cleanup JsonGenerator json = createAndInitJsonGenerator(writer, metricName, epoch);
 
+		if (state != null) {
+			json.writeNumberField("@cost_micros", TimeUnit.NANOSECONDS.toMicros(state.getCostNanos()));
+			if (state.isStale()) {
+				json.writeBooleanField("@stale", true);
+			}
+		}
+
 		if (value instanceof Long) {
 			json.writeNumberField("longValue", (Long)value);
 		} else if (value instanceof Integer) {
@@ -222,65 +700,267 @@ public class ElasticsearchReporter extends AbstractPollingReporter implements Me
 
 		json.writeEndObject();
 		json.flush();
-		addReportBuffer("gauge", writer.toString(), epoch);
+		addReportBuffer("gauge", writer.toString(), nameHash(metricName), epoch);
+	}
+
+	/**
+	 * Start of the interval of a tick run at nowMillis. Aligned ticks fire at the interval start + phase offset, so
+	 * the offset is taken off first: a tick starting late (jitter, GC) must not report the next interval.
+	 */
+	protected DateTime tickEpoch(long nowMillis) {
+		if (!alignTicks || periodMillis <= 0) {
+			return new DateTime(nowMillis);
+		}
+		long firedMillis = nowMillis - phaseOffsetMillis();
+		return new DateTime(firedMillis - floorMod(firedMillis, periodMillis));
+	}
+
+	/**
+	 * Deterministic offset in [0, periodMillis) so that brokers started together do not tick at the same time.
+	 * Without phaseKey, it is derived from the local addresses, not from the hostname which may not be resolved yet.
+	 */
+	protected long phaseOffsetMillis() {
+		if (periodMillis <= 0) {
+			return 0;
+		}
+		String key = phaseKey;
+		if (isEmpty(key)) {
+			if (localAddresses == null) {
+				localAddresses = localAddresses();
+			}
+			key = localAddresses;
+		}
+		return floorMod(mix64(key.hashCode()), periodMillis);
+	}
+
+	/**
+	 * Delay of the first aligned tick, at the next interval start + phase offset. It reports the interval after
+	 * the one of the immediate first tick.
+	 */
+	protected long initialDelayMillis(long nowMillis) {
+		return periodMillis - floorMod(nowMillis - phaseOffsetMillis(), periodMillis);
+	}
+
+	/**
+	 * Write the change of count since the previous tick and its rate per second. The live metric is not mutated.
+	 *
+	 * @param monotonic if true, a decrease is taken as a reset of the metric
+	 */
+	protected void writeDelta(JsonGenerator json, MetricName metricName, long count, boolean monotonic, DateTime epoch)
+			throws IOException {
+		if (epoch.getMillis() != deltaTickMillis) {
+			deltaTickMillis = epoch.getMillis();
+			deltaTracker.nextGeneration();
+			if (++deltaTicks % DELTA_MAX_AGE == 0) {
+				deltaTracker.sweep(DELTA_MAX_AGE);
+			}
+		}
+
+		long delta = deltaTracker.delta(metricName, count, epoch.getMillis());
+		if (delta == DeltaTracker.NO_PREVIOUS) {
+			return;
+		}
+		// per metric, as it may have skipped ticks (e.g. outside the top K)
+		final long intervalMillis = deltaTracker.getLastIntervalMillis();
+		if (monotonic && delta < 0) {
+			delta = count;
+		}
+		json.writeNumberField("delta", delta);
+		if (intervalMillis > 0) {
+			json.writeNumberField("rate", delta * 1000.0 / intervalMillis);
+		}
 	}
 
 	protected void printRegularMetrics(final DateTime epoch) {
-		for (Map.Entry<String, SortedMap<MetricName, Metric>> entry : getMetricsRegistry().groupedMetrics(
-				predicate).entrySet()) {
-			for (Map.Entry<MetricName, Metric> subEntry : entry.getValue().entrySet()) {
-				final Metric metric = subEntry.getValue();
-				if (metric != null) {
-					try {
-						metric.processWith(this, subEntry.getKey(), epoch);
-					} catch (Exception ignored) {
-						LOG.error("Error printing regular metrics:", ignored);
-					}
+		if (!metricIndexRegistered) {
+			// the registry replays the existing metrics to a new listener
+			getMetricsRegistry().addListener(metricIndex);
+			metricIndexRegistered = true;
+		}
+
+		final MetricProfiler profiler = this.profiler;
+		if (gaugeEvaluator != null) {
+			gaugeEvaluator.beginTick();
+		}
+		final TopKSelector topKSelector = this.topKSelector;
+		if (topKSelector != null) {
+			topKSelector.beginTick();
+		}
+		for (MetricIndex.Entry entry : metricIndex.entries()) {
+			long start = profiler == null ? 0 : System.nanoTime();
+			if (loadShedder != null) {
+				priority = loadShedder.classify(entry.name);
+			}
+			long length = bufferedLength;
+			try {
+				final TopKSelector.Family family = topKSelector == null ? null : topKSelector.familyOf(entry.name);
+				if (family == null) {
+					entry.metric.processWith(this, entry.name, epoch);
+				} else {
+					offerTopK(family, entry);
 				}
+			} catch (Exception ignored) {
+				LOG.error("Error printing regular metrics:", ignored);
+			}
+			if (profiler != null) {
+				profiler.record(entry.name, System.nanoTime() - start, bufferedLength - length);
 			}
 		}
+		if (topKSelector != null) {
+			printTopK(epoch);
+		}
 	}
 
-	protected void printVmMetrics(final DateTime epoch) throws Exception {
-		@Cleanup StringWriter writer = new StringWriter();
-		@Cleanup JsonGenerator json = createAndInitJsonGenerator(writer, "jvm", epoch);
+	/**
+	 * Hold an instance for ranking. A gauge is evaluated here once, and its result is reported if it is selected.
+	 */
+	protected void offerTopK(TopKSelector.Family family, MetricIndex.Entry entry) {
+		if (entry.metric instanceof Gauge) {
+			final Gauge<?> gauge = (Gauge<?>)entry.metric;
+			final GaugeEvaluator.State state = evaluateGauge(gauge);
+			final Object value = state == null ? gauge.value() : state.getValue();
+			topKSelector.offer(family, entry, TopKSelector.value(value), state == null ? value : state);
+		} else {
+			topKSelector.offer(family, entry, TopKSelector.value(entry.metric), null);
+		}
+	}
+
+	/**
+	 * Print the top K instances of each family, and the rest as one "topk_others" document.
+	 */
+	protected void printTopK(final DateTime epoch) {
+		final MetricProfiler profiler = this.profiler;
+		for (TopKSelector.Family family : topKSelector.families()) {
+			if (loadShedder != null) {
+				priority = loadShedder.classify(family.getName());
+			}
+			for (TopKSelector.Candidate candidate : family.top()) {
+				final MetricIndex.Entry entry = candidate.getEntry();
+				long start = profiler == null ? 0 : System.nanoTime();
+				long length = bufferedLength;
+				try {
+					if (entry.metric instanceof Gauge) {
+						final Object sample = candidate.getSample();
+						if (sample instanceof GaugeEvaluator.State) {
+							GaugeEvaluator.State state = (GaugeEvaluator.State)sample;
+							writeGauge(entry.name, state.getValue(), state, epoch);
+						} else {
+							writeGauge(entry.name, sample, null, epoch);
+						}
+					} else {
+						entry.metric.processWith(this, entry.name, epoch);
+					}
+				} catch (Exception ignored) {
+					LOG.error("Error printing regular metrics:", ignored);
+				}
+				if (profiler != null) {
+					// the offer was recorded by printRegularMetrics
+					profiler.extend(entry.name, System.nanoTime() - start, bufferedLength - length);
+				}
+			}
 
-		json.writeNumberField("memory.heap_usage", vm.heapUsage());
-		json.writeNumberField("memory.non_heap_usage", vm.nonHeapUsage());
-		for (Map.Entry<String, Double> pool : vm.memoryPoolUsage().entrySet()) {
-			if (isEmpty(pool.getKey())) {
+			if (enableReset && !enableDelta) {
+				resetTopKOthers(family);
+			}
+
+			if (family.getOthersCount() == 0) {
 				continue;
 			}
-			String key = replaceSpecialChars(pool.getKey());
-			json.writeNumberField("memory.memory_pool_usages." + key, pool.getValue());
+			try {
+				@Cleanup StringWriter writer = new StringWriter();
+				@Cleanup JsonGenerator json = createAndInitJsonGenerator(writer, family.getName(), epoch);
+
+				json.writeNumberField("others_count", family.getOthersCount());
+				json.writeNumberField("others_sum", family.getOthersSum());
+
+				json.writeEndObject();
+				json.flush();
+				addReportBuffer("topk_others", writer.toString(), nameHash(family.getName()), epoch);
+			} catch (Exception ignored) {
+				LOG.error("Error printing top K others:", ignored);
+			}
 		}
+	}
 
-		json.writeNumberField("daemon_thread_count", vm.daemonThreadCount());
-		json.writeNumberField("thread_count", vm.threadCount());
-		json.writeNumberField("uptime", vm.uptime());
-		json.writeNumberField("fd_usage", vm.fileDescriptorUsage());
-		for (Map.Entry<Thread.State, Double> entry : vm.threadStatePercentages().entrySet()) {
-			if (entry.getKey() == null || isEmpty(entry.getKey().toString())) {
+	/**
+	 * Clear the counters and histograms of the family which were not reported, as the reported ones are, so that
+	 * every instance is ranked (and summed in "others") by its count of this tick.
+	 */
+	protected void resetTopKOthers(TopKSelector.Family family) {
+		for (MetricIndex.Entry entry : family.others()) {
+			if (entry.metric instanceof Counter) {
+				((Counter)entry.metric).clear();
+			} else if (entry.metric instanceof Histogram) {
+				((Histogram)entry.metric).clear();
+			} else {
 				continue;
 			}
-			String key = entry.getKey().toString().toLowerCase();
-			key = replaceSpecialChars(key);
-			json.writeNumberField("thread_states." + key, entry.getValue());
+			topKSelector.reset(entry.name);
 		}
+		for (TopKSelector.Candidate candidate : family.top()) {
+			// cleared when they were reported
+			final MetricIndex.Entry entry = candidate.getEntry();
+			if (entry.metric instanceof Counter || entry.metric instanceof Histogram) {
+				topKSelector.reset(entry.name);
+			}
+		}
+	}
 
-		for (Map.Entry<String, VirtualMachineMetrics.GarbageCollectorStats> entry : vm.garbageCollectors().entrySet()) {
-			if (isEmpty(entry.getKey())) {
-				continue;
+	protected void printProfile(final DateTime epoch) throws Exception {
+		int rank = 1;
+		for (MetricProfiler.Cost cost : profiler.rotate()) {
+			@Cleanup StringWriter writer = new StringWriter();
+			@Cleanup JsonGenerator json = createAndInitJsonGenerator(writer, cost.getName(), epoch);
+
+			json.writeNumberField("rank", rank++);
+			json.writeNumberField("avg_micros", cost.getAvgNanos() / 1000);
+			json.writeNumberField("max_micros", cost.getMaxNanos() / 1000);
+			json.writeNumberField("avg_bytes", cost.getAvgBytes());
+			json.writeNumberField("samples", cost.getSamples());
+
+			json.writeEndObject();
+			json.flush();
+			addReportBuffer("profile", writer.toString(), nameHash(cost.getName()), epoch);
+		}
+	}
+
+	protected void printKafkaMetrics(final DateTime epoch) {
+		for (KafkaMetric metric : kafkaMetrics.values()) {
+			if (loadShedder != null) {
+				priority = loadShedder.classify(metric.metricName().group(), "", metric.metricName().name());
+			}
+			try {
+				processKafkaMetric(metric, epoch);
+			} catch (Exception ignored) {
+				LOG.error("Error printing kafka metrics:", ignored);
 			}
-			String key = replaceSpecialChars(entry.getKey());
-			final String name = "gc." + key;
-			json.writeNumberField(name + ".time", entry.getValue().getTime(TimeUnit.MILLISECONDS));
-			json.writeNumberField(name + ".runs", entry.getValue().getRuns());
 		}
+	}
+
+	protected void processKafkaMetric(KafkaMetric metric, DateTime epoch) throws Exception {
+		double value = metric.value();
+		if (Double.isNaN(value) || Double.isInfinite(value)) {
+			return;
+		}
+		@Cleanup StringWriter writer = new StringWriter();
+		@Cleanup JsonGenerator json = createAndInitJsonGenerator(writer, metric.metricName(), epoch);
+
+		json.writeNumberField("value", value);
 
 		json.writeEndObject();
 		json.flush();
-		addReportBuffer("jvm", writer.toString(), epoch);
+		addReportBuffer("kafka_metric", writer.toString(), nameHash(metric.metricName()), epoch);
+	}
+
+	protected void printVmMetrics(final DateTime epoch) throws Exception {
+		@Cleanup StringWriter writer = new StringWriter();
+		@Cleanup JsonGenerator json = createAndInitJsonGenerator(writer, "jvm", epoch);
+
+		jvmCollector.collect(json);
+
+		json.writeEndObject();
+		json.flush();
+		addReportBuffer("jvm", writer.toString(), nameHash("jvm"), epoch);
 	}
 
 	protected JsonGenerator createAndInitJsonGenerator(final Writer sw, MetricName metricName, DateTime epoch)
@@ -298,6 +978,27 @@ public class ElasticsearchReporter extends AbstractPollingReporter implements Me
 		return gen;
 	}
 
+	protected JsonGenerator createAndInitJsonGenerator(final Writer sw, org.apache.kafka.common.MetricName metricName,
+			DateTime epoch) throws IOException {
+		JsonGenerator gen = jsonFactory.createGenerator(sw);
+		gen.writeStartObject();
+		gen.writeStringField(timestampFieldName, epoch.toString(ISODateTimeFormat.dateTime()));
+		gen.writeStringField("@group", replaceSpecialChars(metricName.group()));
+		gen.writeStringField("@name", replaceSpecialChars(metricName.name()));
+		if (!metricName.tags().isEmpty()) {
+			gen.writeObjectFieldStart("@tags");
+			for (Map.Entry<String, String> tag : metricName.tags().entrySet()) {
+				if (isEmpty(tag.getKey()) || tag.getValue() == null) {
+					continue;
+				}
+				gen.writeStringField(replaceSpecialChars(tag.getKey()), replaceSpecialChars(tag.getValue()));
+			}
+			gen.writeEndObject();
+		}
+		gen.writeStringField("hostname", hostname);
+		return gen;
+	}
+
 	protected JsonGenerator createAndInitJsonGenerator(final Writer sw, String metricName, DateTime epoch)
 			throws IOException {
 		JsonGenerator gen = jsonFactory.createGenerator(sw);
@@ -308,15 +1009,214 @@ public class ElasticsearchReporter extends AbstractPollingReporter implements Me
 		return gen;
 	}
 
-	protected void addReportBuffer(String type, String json, DateTime epoch) {
-		final String index = indexPrefix + epoch.toString("yyyy.MM.dd");
+	/**
+	 * Hash of hostname and metric name, from which {@link #documentId} derives the ids of the metric.
+	 *
+	 * @return 0 if the ids are not deterministic
+	 */
+	protected long nameHash(MetricName metricName) {
+		if (!deterministicIds) {
+			return 0;
+		}
+		long h = hash64(FNV_OFFSET_BASIS, hostname);
+		h = hash64(h, metricName.getGroup());
+		h = hash64(h, metricName.getType());
+		h = hash64(h, metricName.getName());
+		return hash64(h, metricName.getScope());
+	}
 
-		if (ttl != null && ttl.length() > 0) {
-			buffer.append(String.format(ES_BULK_INDEX_WITH_TTL_RAW_FORMAT, index, type, ttl));
-		} else {
-			buffer.append(String.format(ES_BULK_INDEX_RAW_FORMAT, index, type));
+	protected long nameHash(org.apache.kafka.common.MetricName metricName) {
+		if (!deterministicIds) {
+			return 0;
+		}
+		long h = hash64(FNV_OFFSET_BASIS, hostname);
+		h = hash64(h, metricName.group());
+		h = hash64(h, metricName.name());
+		// independent of the iteration order of tags
+		for (Map.Entry<String, String> tag : metricName.tags().entrySet()) {
+			h += hash64(hash64(FNV_OFFSET_BASIS, tag.getKey()), tag.getValue());
+		}
+		return h;
+	}
+
+	protected long nameHash(String metricName) {
+		if (!deterministicIds) {
+			return 0;
 		}
+		return hash64(hash64(FNV_OFFSET_BASIS, hostname), metricName);
+	}
+
+	protected void addReportBuffer(String type, String json, long nameHash, DateTime epoch) {
+		addReportBuffer(type, json, nameHash, epoch, null);
+	}
+
+	/**
+	 * @param reset run once the document is admitted (at once without a budget), null if nothing
+	 */
+	protected void addReportBuffer(String type, String json, long nameHash, DateTime epoch, Runnable reset) {
+		addReportBuffer(type, json, nameHash, epoch, loadShedder != null, reset);
+	}
+
+	/**
+	 * @param nameHash {@link #nameHash} of the metric of the document
+	 * @param budgeted if true, the document is held by the load shedder until the end of the tick
+	 * @param reset run once the document is admitted, null if nothing
+	 */
+	protected void addReportBuffer(String type, String json, long nameHash, DateTime epoch, boolean budgeted,
+			Runnable reset) {
+		final String actionLine = deterministicIds
+				? actionLine(type, epoch) + documentId(type, nameHash, epoch) + ES_BULK_CREATE_SUFFIX
+				: actionLine(type, epoch);
+		bufferedLength += actionLine.length() + json.length() + 2;
+		if (budgeted) {
+			// added to the snapshot if admitted
+			loadShedder.add(priority, actionLine, json, reset);
+			return;
+		}
+		buffer.append(actionLine);
 		buffer.append("\n").append(json).append("\n");
+		if (snapshotServer != null) {
+			snapshotBuffer.append(json).append("\n");
+		}
+		if (reset != null) {
+			reset.run();
+		}
+	}
+
+	/**
+	 * Move the documents within the budget to the bulk buffer (and the snapshot), reset their metrics, and report
+	 * what was shed as a "shed" document. The "shed" document itself is not subject to the budget.
+	 */
+	protected void applyBudget(DateTime epoch) {
+		try {
+			loadShedder.drainTo(buffer, snapshotServer != null ? snapshotBuffer : null);
+
+			@Cleanup StringWriter writer = new StringWriter();
+			@Cleanup JsonGenerator json = createAndInitJsonGenerator(writer, "shed", epoch);
+
+			json.writeNumberField("admitted_docs", loadShedder.getAdmittedDocs());
+			json.writeNumberField("admitted_bytes", loadShedder.getAdmittedBytes());
+			for (LoadShedder.Priority p : LoadShedder.Priority.values()) {
+				final String key = p.name().toLowerCase();
+				json.writeNumberField(key + ".shed_docs", loadShedder.getShedDocs(p));
+				json.writeNumberField(key + ".shed_bytes", loadShedder.getShedBytes(p));
+			}
+
+			json.writeEndObject();
+			json.flush();
+			addReportBuffer("shed", writer.toString(), nameHash("shed"), epoch, false, null);
+		} catch (IOException e) {
+			LOG.error("Error applying the budget:", e);
+		}
+
+		if (loadShedder.isShedding() != shedding) {
+			shedding = !shedding;
+			if (shedding) {
+				LOG.warn("The metrics exceed the budget, shedding documents by priority.");
+			} else {
+				LOG.info("The metrics fit in the budget again.");
+			}
+		}
+	}
+
+	/**
+	 * Hand the documents of this tick over to the pull endpoint, serialized once.
+	 */
+	protected void publishSnapshot(DateTime epoch) {
+		final String sBuf = snapshotBuffer.toString();
+		snapshotBuffer = new StringWriter();
+		try {
+			snapshotServer.publish(new MetricsSnapshot(epoch.getMillis(), sBuf.getBytes("UTF-8")));
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * The index name and action lines are computed once per tick, not per document.
+	 */
+	protected String actionLine(String type, DateTime epoch) {
+		if (epoch.getMillis() != indexEpochMillis) {
+			indexSuffix = indexGranularity.format(epoch);
+			index = indexPrefix + indexSuffix;
+			indexEpochMillis = epoch.getMillis();
+			actionLines.clear();
+		}
+
+		String actionLine = actionLines.get(type);
+		if (actionLine == null) {
+			if (deterministicIds) {
+				// the id and ES_BULK_CREATE_SUFFIX follow per document
+				if (ttl != null && ttl.length() > 0) {
+					actionLine = String.format(ES_BULK_CREATE_WITH_TTL_RAW_FORMAT, index, type, ttl);
+				} else {
+					actionLine = String.format(ES_BULK_CREATE_RAW_FORMAT, index, type);
+				}
+			} else if (ttl != null && ttl.length() > 0) {
+				actionLine = String.format(ES_BULK_INDEX_WITH_TTL_RAW_FORMAT, index, type, ttl);
+			} else {
+				actionLine = String.format(ES_BULK_INDEX_RAW_FORMAT, index, type);
+			}
+			if (!sinks.isEmpty()) {
+				// the payload is shared by all sinks, Elasticsearch targets post it to /{their index}/_bulk
+				actionLine = actionLine.replace("\"_index\":\"" + index + "\",", "");
+			}
+			actionLines.put(type, actionLine);
+		}
+		return actionLine;
+	}
+
+	/**
+	 * Id of a document: hash of hostname, metric name (nameHash), type and epoch.
+	 * The same metric at the same tick always gets the same id, so that a retried or replayed bulk does not
+	 * create duplicates.
+	 */
+	protected String documentId(String type, long nameHash, DateTime epoch) {
+		long h = hash64(nameHash, type);
+		return encodeId(mix64(h ^ mix64(epoch.getMillis())));
+	}
+
+	/**
+	 * Delete whole indices whose period ended before the retention, on every target.
+	 */
+	protected void sweepExpiredIndices(DateTime epoch) {
+		final DateTime expiry = epoch.minus(retentionMillis);
+		for (MetricsSink sink : sinks) {
+			if (!(sink instanceof ElasticsearchTarget)) {
+				continue;
+			}
+			final ElasticsearchTarget target = (ElasticsearchTarget)sink;
+			target.submit(new Runnable() {
+				@Override
+				public void run() {
+					sweepExpiredIndices(target, expiry);
+				}
+			});
+		}
+		if (primaryEnabled) {
+			primary.submit(new Runnable() {
+				@Override
+				public void run() {
+					sweepExpiredIndices(primary, expiry);
+				}
+			});
+		}
+	}
+
+	protected void sweepExpiredIndices(ElasticsearchTarget target, DateTime expiry) {
+		final String prefix = target.getIndexPrefix();
+		for (String indexName : target.listIndices()) {
+			if (!indexName.startsWith(prefix)) {
+				continue;
+			}
+			DateTime start = indexGranularity.parse(indexName.substring(prefix.length()));
+			if (start == null || indexGranularity.end(start).isAfter(expiry)) {
+				continue;
+			}
+			if (!target.deleteIndex(indexName)) {
+				return;
+			}
+		}
 	}
 
 	protected void sendBulkRequest() {
@@ -331,57 +1231,243 @@ public class ElasticsearchReporter extends AbstractPollingReporter implements Me
 			LOG.info("=========== Elasticsearch '/_bulk' \n{}", sBuf);
 		}
 
-		HttpURLConnection connection = null;
-		boolean connected = false;
+		// encoded once, every sink writes the same bytes
+		final byte[] payload;
+		try {
+			payload = sBuf.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+		for (MetricsSink sink : sinks) {
+			try {
+				sink.write(payload, indexSuffix);
+			} catch (Exception e) {
+				LOG.warn("Fail! Writing metrics to sink '{}'.", sink.getName(), e);
+			}
+		}
+		if (primaryEnabled) {
+			// the template is put by the tick, which knows whether it is enabled
+			primary.write(payload, sinks.isEmpty() ? "/_bulk" : "/" + index + "/_bulk", false);
+		}
+	}
 
-		for (int i = 0; i < nodesList.size(); i++) { // Round-Robin
-			int hostIndex = nextHostIndex.get();
-			nextHostIndex.set((nextHostIndex.get() == nodesList.size() - 1) ? 0 : nextHostIndex.get() + 1);
+	/**
+	 * Give the index template and the idempotence to the Elasticsearch targets, once all settings are made.
+	 */
+	protected void prepareSinks() {
+		for (MetricsSink sink : sinks) {
+			if (!(sink instanceof ElasticsearchTarget)) {
+				continue;
+			}
+			ElasticsearchTarget target = (ElasticsearchTarget)sink;
+			target.setIdempotent(deterministicIds);
 			try {
-				URL templateUrl = new URL("http://" + nodesList.get(hostIndex) + "/_bulk");
-				LOG.info("Request to Elasticsearch '{}'", templateUrl);
-				connection = (HttpURLConnection)templateUrl.openConnection();
-				connection.setRequestMethod("POST");
-				connection.setConnectTimeout(3000); //3sec
-				connection.setUseCaches(false);
-				connection.setDoOutput(true);
-				connection.connect();
-				connected = true;
-				break;
+				target.setIndexTemplate(installTemplate ? createIndexTemplate(target.getIndexPrefix()) : null);
 			} catch (IOException e) {
-				LOG.error("Error connecting to {}: {}", nodesList.get(hostIndex), e);
+				LOG.warn("Fail! Creating index template.", e);
 			}
 		}
+		sinksPrepared = true;
+	}
 
-		if (connected) {
-			try {
-				OutputStreamWriter printWriter = new OutputStreamWriter(connection.getOutputStream(), "UTF-8");
-				printWriter.write(sBuf);
-				printWriter.flush();
-				printWriter.close();
-				closeConnection(connection);
+	/**
+	 * Put the index template for indexPrefix*. PUT replaces the template as a whole, so this is idempotent.
+	 *
+	 * @return true if Elasticsearch accepted the template
+	 */
+	protected boolean installIndexTemplate() {
+		return installIndexTemplate(primary);
+	}
 
-			} catch (Exception e) {
-				LOG.warn("Fail! The metric reporting to Elasticsearch.", e);
-			}
+	protected boolean installIndexTemplate(ElasticsearchTarget target) {
+		try {
+			return target.installIndexTemplate(createIndexTemplate(target.getIndexPrefix()));
+		} catch (IOException e) {
+			LOG.warn("Fail! Creating index template.", e);
+			return false;
 		}
 	}
 
-	protected void closeConnection(HttpURLConnection connection)
+	protected String createIndexTemplate() throws IOException {
+		return createIndexTemplate(indexPrefix);
+	}
+
+	protected String createIndexTemplate(String indexPrefix) throws IOException {
+		@Cleanup StringWriter writer = new StringWriter();
+		@Cleanup JsonGenerator json = jsonFactory.createGenerator(writer);
+
+		json.writeStartObject();
+		json.writeStringField("template", indexPrefix + "*");
+		json.writeObjectFieldStart("settings");
+		json.writeNumberField("index.number_of_shards", templateNumberOfShards);
+		json.writeStringField("index.refresh_interval", templateRefreshInterval);
+		json.writeEndObject();
+
+		json.writeObjectFieldStart("mappings");
+		json.writeObjectFieldStart("_default_");
+		json.writeObjectFieldStart("_all");
+		json.writeBooleanField("enabled", false);
+		json.writeEndObject();
+		json.writeObjectFieldStart("_source");
+		json.writeBooleanField("enabled", true);
+		json.writeEndObject();
+		if (!isEmpty(ttl)) {
+			json.writeObjectFieldStart("_ttl");
+			json.writeBooleanField("enabled", true);
+			json.writeEndObject();
+		}
+
+		// fields which are not known in advance (e.g. jvm metrics)
+		json.writeArrayFieldStart("dynamic_templates");
+		writeDynamicTemplate(json, "strings", "string", "string");
+		writeDynamicTemplate(json, "longs", "long", "long");
+		writeDynamicTemplate(json, "doubles", "double", "double");
+		json.writeEndArray();
+
+		json.writeObjectFieldStart("properties");
+		json.writeObjectFieldStart(timestampFieldName);
+		json.writeStringField("type", "date");
+		json.writeBooleanField("doc_values", true);
+		json.writeEndObject();
+		for (String field : new String[] {"@group", "@type", "@name", "@scope", "hostname", "stringValue"}) {
+			writeFieldMapping(json, field, "string");
+		}
+		for (String field : new String[] {"count", "delta", "longValue", "integerValue", "shortValue", "@cost_micros"}) {
+			writeFieldMapping(json, field, "long");
+		}
+		for (String field : new String[] {"m1_rate", "m5_rate", "m15_rate", "mean_rate", "max", "mean", "min", "stddev",
+				"p50", "p75", "p95", "p98", "p99", "p999", "sum", "rate", "doubleValue", "floatValue", "value"}) {
+			writeFieldMapping(json, field, "double");
+		}
+		writeFieldMapping(json, "booleanValue", "boolean");
+		writeFieldMapping(json, "@stale", "boolean");
+		json.writeEndObject();
+
+		json.writeEndObject();
+		json.writeEndObject();
+		json.writeEndObject();
+		json.flush();
+		return writer.toString();
+	}
+
+	private void writeDynamicTemplate(JsonGenerator json, String name, String matchMappingType, String type)
 			throws IOException {
-		connection.getOutputStream().close();
-		connection.disconnect();
-		if (connection.getResponseCode() != 200) {
-			LOG.warn("Reporting returned code {} {}",
-					connection.getResponseCode(),
-					connection.getResponseMessage());
+		json.writeStartObject();
+		json.writeObjectFieldStart(name);
+		json.writeStringField("match_mapping_type", matchMappingType);
+		json.writeFieldName("mapping");
+		writeMapping(json, type);
+		json.writeEndObject();
+		json.writeEndObject();
+	}
+
+	private void writeFieldMapping(JsonGenerator json, String field, String type) throws IOException {
+		json.writeFieldName(field);
+		writeMapping(json, type);
+	}
+
+	/**
+	 * Strings are not analyzed, numerics are only stored as doc_values (aggregations, not searches).
+	 */
+	private void writeMapping(JsonGenerator json, String type) throws IOException {
+		json.writeStartObject();
+		json.writeStringField("type", type);
+		if ("string".equals(type)) {
+			json.writeStringField("index", "not_analyzed");
+		} else if (!"boolean".equals(type)) {
+			json.writeStringField("index", "no");
 		}
+		json.writeBooleanField("doc_values", true);
+		json.writeEndObject();
+	}
+
+	/**
+	 * Connect to one of the nodes of the primary target (Round-Robin).
+	 *
+	 * @return connected connection, or null if all nodes failed
+	 */
+	protected HttpURLConnection openConnection(String method, String path) {
+		return primary.openConnection(method, path);
+	}
+
+	protected void closeConnection(HttpURLConnection connection)
+			throws IOException {
+		primary.closeConnection(connection);
 	}
 
 	public static boolean isEmpty(String str) {
 		return str == null || str.length() == 0;
 	}
 
+	/**
+	 * Finalizer of MurmurHash3. Spreads small sequential keys such as broker ids.
+	 */
+	public static long mix64(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	/**
+	 * 64-bit FNV-1a over the chars of str, continuing from h. A null str is hashed as a separator only.
+	 */
+	public static long hash64(long h, String str) {
+		if (str != null) {
+			for (int i = 0; i < str.length(); i++) {
+				h = (h ^ str.charAt(i)) * FNV_PRIME;
+			}
+		}
+		// separator, so that ("ab", "c") and ("a", "bc") differ
+		return (h ^ 0xff) * FNV_PRIME;
+	}
+
+	/**
+	 * @return h as 11 URL-safe base64 chars
+	 */
+	public static String encodeId(long h) {
+		char[] chars = new char[11];
+		for (int i = chars.length - 1; i >= 0; i--) {
+			chars[i] = ID_CHARS[(int)(h & 0x3f)];
+			h >>>= 6;
+		}
+		return new String(chars);
+	}
+
+	public static long floorMod(long x, long y) {
+		long mod = x % y;
+		return mod < 0 ? mod + y : mod;
+	}
+
+	/**
+	 * Parse a duration such as "12h", "7d" or "2w". A number without unit is taken as days.
+	 */
+	public static long parseDurationMillis(String str) {
+		if (isEmpty(str)) {
+			return 0;
+		}
+		str = str.trim();
+		char unit = str.charAt(str.length() - 1);
+		if (Character.isDigit(unit)) {
+			return TimeUnit.DAYS.toMillis(Long.parseLong(str));
+		}
+		long value = Long.parseLong(str.substring(0, str.length() - 1));
+		switch (unit) {
+			case 'm':
+				return TimeUnit.MINUTES.toMillis(value);
+			case 'h':
+				return TimeUnit.HOURS.toMillis(value);
+			case 'd':
+				return TimeUnit.DAYS.toMillis(value);
+			case 'w':
+				return TimeUnit.DAYS.toMillis(value * 7);
+			default:
+				throw new IllegalArgumentException("Unknown duration unit: " + str);
+		}
+	}
+
 	public static String replaceSpecialChars(String str) {
 		str = str.replace(" ", "_");
 		str = str.replace("-", "_");
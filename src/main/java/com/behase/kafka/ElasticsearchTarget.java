@@ -0,0 +1,442 @@
+package com.behase.kafka;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import lombok.Cleanup;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sink to a named Elasticsearch cluster: its nodes (Round-Robin), index prefix and retry policy.
+ * <p>
+ * As a {@link MetricsSink}, bulk requests are sent on the own thread of the target. The primary nodes of
+ * the reporter use the same class and thread, so that retries and slow nodes do not delay the tick.
+ * <p>
+ * Every response is read to the end and closed (never disconnected), so that HttpURLConnection keeps the connections
+ * alive and reuses them for the next requests to the same node.
+ */
+public class ElasticsearchTarget extends AsyncSink {
+	private static final Logger LOG = LoggerFactory.getLogger(ElasticsearchTarget.class);
+
+	public static final long MAX_RETRY_BACKOFF_MILLIS = 30000;
+	public static final int READ_TIMEOUT_MILLIS = 30000;
+	/**
+	 * Response code of a request which could not be sent (no node reachable).
+	 */
+	public static final int NOT_SENT = -1;
+	/**
+	 * Response code of a request which was sent without a response (connection lost, read timeout).
+	 */
+	public static final int NO_RESPONSE = -2;
+
+	private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+	private final String indexPrefix;
+	private final List<String> nodesList = new ArrayList<String>();
+	private final AtomicInteger nextHostIndex = new AtomicInteger();
+	private int maxRetries = 0;
+	private long retryBackoffMillis = 1000;
+	private volatile boolean idempotent = false;
+	private volatile String indexTemplate;
+	// accessed by the sender thread only
+	private boolean templateInstalled = false;
+
+	public ElasticsearchTarget(String name, String nodes, String indexPrefix) {
+		super(name);
+		this.indexPrefix = indexPrefix;
+		for (String node : nodes.split(",")) {
+			if (node.trim().length() > 0) {
+				nodesList.add(node.trim());
+			}
+		}
+	}
+
+	public String getIndexPrefix() {
+		return indexPrefix;
+	}
+
+	/**
+	 * A bulk which was not indexed (no node reachable, 429) is retried up to maxRetries times, waiting backoffMillis
+	 * doubled per attempt (at most {@link #MAX_RETRY_BACKOFF_MILLIS}). So are the documents rejected with 429
+	 * in a successful bulk. A bulk which may be partly indexed (no response, 5xx) is retried only if idempotent.
+	 */
+	public void setRetryPolicy(int maxRetries, long backoffMillis) {
+		this.maxRetries = maxRetries;
+		this.retryBackoffMillis = backoffMillis;
+	}
+
+	/**
+	 * True if the documents have deterministic ids, so that sending a bulk again does not create duplicates.
+	 */
+	public void setIdempotent(boolean idempotent) {
+		this.idempotent = idempotent;
+	}
+
+	/**
+	 * Put this template before the first bulk request, null not to.
+	 */
+	public void setIndexTemplate(String indexTemplate) {
+		this.indexTemplate = indexTemplate;
+	}
+
+	/**
+	 * Send the payload to /{indexPrefix}{indexSuffix}/_bulk on the sender thread.
+	 */
+	@Override
+	public void write(byte[] payload, String indexSuffix) {
+		write(payload, "/" + indexPrefix + indexSuffix + "/_bulk", true);
+	}
+
+	/**
+	 * Send the payload to path on the sender thread, with its retries.
+	 *
+	 * @param installTemplate if true, the index template is put before the first bulk
+	 */
+	public void write(final byte[] payload, final String path, final boolean installTemplate) {
+		submit(new Runnable() {
+			@Override
+			public void run() {
+				if (installTemplate && indexTemplate != null && !templateInstalled) {
+					templateInstalled = installIndexTemplate(indexTemplate);
+				}
+				bulk(payload, path);
+			}
+		});
+	}
+
+	/**
+	 * POST a bulk payload, retrying according to the retry policy.
+	 * <p>
+	 * Elasticsearch answers 200 even if it rejected some documents (429 of an item, when its bulk queue is full);
+	 * only those are sent again. They were not indexed, so this does not duplicate documents, with or without
+	 * deterministic ids.
+	 *
+	 * @param path "/_bulk", or "/{index}/_bulk" if the action lines have no _index
+	 * @return true if Elasticsearch accepted the request and no document is left rejected
+	 */
+	public boolean bulk(byte[] payload, String path) {
+		for (int attempt = 0; ; attempt++) {
+			ByteArrayOutputStream response = new ByteArrayOutputStream();
+			int responseCode = post(payload, path, response);
+			boolean retryable;
+			if (responseCode == 200) {
+				List<Integer> rejected = rejectedItems(response.toByteArray());
+				if (rejected.isEmpty()) {
+					return true;
+				}
+				LOG.info("{} documents were rejected by '{}'", rejected.size(), name);
+				payload = retainItems(payload, rejected);
+				retryable = true;
+			} else {
+				// without a response or with 5xx, a part may have been indexed
+				retryable = responseCode == NOT_SENT || responseCode == 429
+						|| (idempotent && (responseCode == NO_RESPONSE || responseCode >= 500));
+			}
+			if (!retryable || attempt >= maxRetries) {
+				return false;
+			}
+			long backoff = Math.min(MAX_RETRY_BACKOFF_MILLIS, retryBackoffMillis << Math.min(attempt, 16));
+			LOG.info("Retrying the bulk request to '{}' in {}ms", name, backoff);
+			try {
+				Thread.sleep(backoff);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * @param response the response body is copied to it
+	 * @return response code, {@link #NOT_SENT} or {@link #NO_RESPONSE}
+	 */
+	protected int post(byte[] payload, String path, OutputStream response) {
+		HttpURLConnection connection = openConnection("POST", path);
+		if (connection == null) {
+			return NOT_SENT;
+		}
+		try {
+			OutputStream os = connection.getOutputStream();
+			os.write(payload);
+			os.flush();
+			return closeConnection(connection, response);
+		} catch (Exception e) {
+			LOG.warn("Fail! The metric reporting to Elasticsearch.", e);
+			return NO_RESPONSE;
+		}
+	}
+
+	/**
+	 * Positions of the items of a bulk response rejected with 429. The other failed items are not retried, only
+	 * logged.
+	 */
+	protected List<Integer> rejectedItems(byte[] response) {
+		List<Integer> rejected = new ArrayList<Integer>();
+		try {
+			JsonParser parser = JSON_FACTORY.createParser(response);
+			try {
+				if (parser.nextToken() != JsonToken.START_OBJECT) {
+					return rejected;
+				}
+				while (parser.nextToken() == JsonToken.FIELD_NAME) {
+					String field = parser.getCurrentName();
+					JsonToken token = parser.nextToken();
+					if ("errors".equals(field) && token == JsonToken.VALUE_FALSE) {
+						return rejected;
+					}
+					if (!"items".equals(field) || token != JsonToken.START_ARRAY) {
+						parser.skipChildren();
+						continue;
+					}
+					int failed = 0;
+					for (int item = 0; parser.nextToken() == JsonToken.START_OBJECT; item++) {
+						int status = itemStatus(parser);
+						if (status == 429) {
+							rejected.add(item);
+						} else if (status >= 300) {
+							failed++;
+						}
+					}
+					if (failed > 0) {
+						LOG.warn("{} documents were not accepted by '{}'", failed, name);
+					}
+				}
+			} finally {
+				parser.close();
+			}
+		} catch (IOException e) {
+			LOG.warn("Fail! Reading the bulk response of '{}'.", name, e);
+		}
+		return rejected;
+	}
+
+	/**
+	 * Status of an item ({"index":{"_id":...,"status":429,"error":{...}}}), the parser being on its START_OBJECT.
+	 */
+	private static int itemStatus(JsonParser parser) throws IOException {
+		int status = 0;
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			if (parser.nextToken() != JsonToken.START_OBJECT) {
+				parser.skipChildren();
+				continue;
+			}
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String field = parser.getCurrentName();
+				parser.nextToken();
+				if ("status".equals(field)) {
+					status = parser.getIntValue();
+				} else {
+					parser.skipChildren();
+				}
+			}
+		}
+		return status;
+	}
+
+	/**
+	 * The action and source lines of the given items of a bulk payload.
+	 *
+	 * @param items positions, ascending
+	 */
+	static byte[] retainItems(byte[] payload, List<Integer> items) {
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		int next = 0;
+		int lines = 0;
+		int start = 0;
+		for (int i = 0; i < payload.length && next < items.size(); i++) {
+			if (payload[i] != '\n' || ++lines % 2 != 0) {
+				continue;
+			}
+			if (items.get(next) == lines / 2 - 1) {
+				os.write(payload, start, i + 1 - start);
+				next++;
+			}
+			start = i + 1;
+		}
+		return os.toByteArray();
+	}
+
+	/**
+	 * Put the index template. PUT replaces the template as a whole, so this is idempotent.
+	 *
+	 * @return true if Elasticsearch accepted the template
+	 */
+	public boolean installIndexTemplate(String template) {
+		final String templateName = indexPrefix + "template";
+		HttpURLConnection connection = openConnection("PUT", "/_template/" + templateName);
+		if (connection == null) {
+			return false;
+		}
+		try {
+			OutputStream os = connection.getOutputStream();
+			os.write(template.getBytes("UTF-8"));
+			os.close();
+			int responseCode = connection.getResponseCode();
+			release(connection);
+			if (responseCode != 200) {
+				LOG.warn("Putting index template '{}' returned code {}", templateName, responseCode);
+				return false;
+			}
+			LOG.info("Put index template '{}'", templateName);
+			return true;
+		} catch (Exception e) {
+			LOG.warn("Fail! Putting index template to Elasticsearch.", e);
+			return false;
+		}
+	}
+
+	public List<String> listIndices() {
+		List<String> indices = new ArrayList<String>();
+		HttpURLConnection connection = openConnection("GET", "/_cat/indices/" + indexPrefix + "*?h=index");
+		if (connection == null) {
+			return indices;
+		}
+		try {
+			if (connection.getResponseCode() != 200) {
+				LOG.warn("Listing indices returned code {}", connection.getResponseCode());
+				release(connection);
+				return indices;
+			}
+			@Cleanup BufferedReader reader = new BufferedReader(
+					new InputStreamReader(connection.getInputStream(), "UTF-8"));
+			String line;
+			while ((line = reader.readLine()) != null) {
+				line = line.trim();
+				if (line.length() > 0) {
+					indices.add(line);
+				}
+			}
+		} catch (IOException e) {
+			LOG.warn("Fail! Listing indices.", e);
+		}
+		return indices;
+	}
+
+	/**
+	 * @return false if no node is reachable
+	 */
+	public boolean deleteIndex(String indexName) {
+		HttpURLConnection connection = openConnection("DELETE", "/" + indexName);
+		if (connection == null) {
+			return false;
+		}
+		try {
+			int responseCode = connection.getResponseCode();
+			release(connection);
+			if (responseCode != 200) {
+				LOG.warn("Deleting index '{}' returned code {}", indexName, responseCode);
+			} else {
+				LOG.info("Deleted expired index '{}'", indexName);
+			}
+		} catch (IOException e) {
+			LOG.warn("Fail! Deleting index '{}'.", indexName, e);
+		}
+		return true;
+	}
+
+	/**
+	 * Connect to one of the nodes (Round-Robin).
+	 *
+	 * @return connected connection, or null if all nodes failed
+	 */
+	public HttpURLConnection openConnection(String method, String path) {
+		for (int i = 0; i < nodesList.size(); i++) { // Round-Robin
+			int hostIndex = nextHostIndex.get();
+			nextHostIndex.set((nextHostIndex.get() == nodesList.size() - 1) ? 0 : nextHostIndex.get() + 1);
+			try {
+				URL templateUrl = new URL("http://" + nodesList.get(hostIndex) + path);
+				LOG.info("Request to Elasticsearch '{}'", templateUrl);
+				HttpURLConnection connection = (HttpURLConnection)templateUrl.openConnection();
+				connection.setRequestMethod(method);
+				connection.setConnectTimeout(3000); //3sec
+				connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+				connection.setUseCaches(false);
+				connection.setDoOutput("POST".equals(method) || "PUT".equals(method));
+				connection.connect();
+				return connection;
+			} catch (IOException e) {
+				LOG.error("Error connecting to {}: {}", nodesList.get(hostIndex), e);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return response code
+	 */
+	public int closeConnection(HttpURLConnection connection)
+			throws IOException {
+		return closeConnection(connection, null);
+	}
+
+	/**
+	 * @param response the response body is copied to it, if not null
+	 * @return response code
+	 */
+	public int closeConnection(HttpURLConnection connection, OutputStream response)
+			throws IOException {
+		connection.getOutputStream().close();
+		int responseCode = connection.getResponseCode();
+		if (responseCode != 200) {
+			LOG.warn("Reporting to '{}' returned code {} {}",
+					name,
+					responseCode,
+					connection.getResponseMessage());
+		}
+		release(connection, response);
+		return responseCode;
+	}
+
+	/**
+	 * Read the response (or error) body to the end and close it, which hands the connection back to the keep-alive
+	 * cache of HttpURLConnection.
+	 */
+	protected static void release(HttpURLConnection connection) {
+		release(connection, null);
+	}
+
+	/**
+	 * @param response the body is copied to it, if not null
+	 */
+	protected static void release(HttpURLConnection connection, OutputStream response) {
+		InputStream is;
+		try {
+			is = connection.getInputStream();
+		} catch (IOException e) {
+			is = connection.getErrorStream();
+		}
+		if (is == null) {
+			return;
+		}
+		try {
+			byte[] buf = new byte[8192];
+			int n;
+			while ((n = is.read(buf)) != -1) {
+				if (response != null) {
+					response.write(buf, 0, n);
+				}
+			}
+		} catch (IOException e) {
+			LOG.debug("Fail! Reading the response.", e);
+		} finally {
+			try {
+				is.close();
+			} catch (IOException e) {
+				LOG.debug("Fail! Closing the response.", e);
+			}
+		}
+	}
+}
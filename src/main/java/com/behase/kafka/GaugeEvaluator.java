@@ -0,0 +1,219 @@
+package com.behase.kafka;
+
+import com.yammer.metrics.core.Gauge;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Evaluates gauges with a time budget, so that one slow gauge does not stall the whole tick.
+ * <p>
+ * Every evaluation runs on a pool thread, so that a gauge which becomes slow or hangs (e.g. under lock contention)
+ * is bounded however fast it was before. The tick waits for the pool at most the budget in total, not per gauge.
+ * If a gauge overruns, the last good value is used. A gauge which overruns repeatedly is demoted and evaluated only
+ * every N ticks.
+ * <p>
+ * A gauge is never submitted again while its previous evaluation runs, and nothing is submitted while every pool
+ * thread is busy, so that hung gauges cannot starve the others. Not thread-safe, it is used by the tick thread only.
+ */
+public class GaugeEvaluator {
+	private static final Logger LOG = LoggerFactory.getLogger(GaugeEvaluator.class);
+
+	public static class State {
+		Object value;
+		long costNanos;
+		boolean stale;
+		boolean demoted;
+		int overruns;
+		int skip;
+		Future<Object> pending;
+
+		public Object getValue() {
+			return value;
+		}
+
+		/**
+		 * @return cost of the last finished evaluation
+		 */
+		public long getCostNanos() {
+			return costNanos;
+		}
+
+		/**
+		 * @return true if the value is cached from a previous tick
+		 */
+		public boolean isStale() {
+			return stale;
+		}
+
+		public boolean isDemoted() {
+			return demoted;
+		}
+	}
+
+	private final long budgetNanos;
+	private final int demoteAfter;
+	private final int demotedInterval;
+	private final int maxThreads;
+	// keyed by the gauge itself, so that states of removed gauges are collected
+	private final Map<Gauge<?>, State> states = new WeakHashMap<Gauge<?>, State>();
+	// evaluations submitted and not finished yet
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private ThreadPoolExecutor executor;
+	private long waitedNanos = 0;
+
+	public static final int DEFAULT_MAX_THREADS = 4;
+
+	public GaugeEvaluator(long budgetMillis, int demoteAfter, int demotedInterval) {
+		this(budgetMillis, demoteAfter, demotedInterval, DEFAULT_MAX_THREADS);
+	}
+
+	/**
+	 * @param budgetMillis max time a tick waits for gauges
+	 * @param demoteAfter number of consecutive overruns after which a gauge is demoted
+	 * @param demotedInterval a demoted gauge is evaluated every this number of ticks
+	 * @param maxThreads max number of gauges evaluated at the same time off the tick thread
+	 */
+	public GaugeEvaluator(long budgetMillis, int demoteAfter, int demotedInterval, int maxThreads) {
+		this.budgetNanos = TimeUnit.MILLISECONDS.toNanos(budgetMillis);
+		this.demoteAfter = demoteAfter;
+		this.demotedInterval = demotedInterval;
+		this.maxThreads = maxThreads;
+	}
+
+	/**
+	 * Start a new tick, which may wait the whole budget again.
+	 */
+	public void beginTick() {
+		waitedNanos = 0;
+	}
+
+	public State evaluate(final Gauge<?> gauge) {
+		State state = states.get(gauge);
+		if (state == null) {
+			state = new State();
+			states.put(gauge, state);
+		}
+
+		if (state.pending != null) {
+			if (!state.pending.isDone()) {
+				// still running since a previous tick
+				state.stale = true;
+				return state;
+			}
+			complete(state, state.pending);
+			state.pending = null;
+			return state;
+		}
+
+		if (state.demoted && state.skip > 0) {
+			state.skip--;
+			state.stale = true;
+			return state;
+		}
+
+		if (inFlight.get() >= maxThreads) {
+			// every thread is busy (possibly hung), do not queue behind them
+			state.stale = true;
+			return state;
+		}
+		inFlight.incrementAndGet();
+		final State s = state;
+		Future<Object> future = executor().submit(new Callable<Object>() {
+			@Override
+			public Object call() throws Exception {
+				try {
+					long start = System.nanoTime();
+					Object value = gauge.value();
+					s.costNanos = System.nanoTime() - start;
+					return value;
+				} finally {
+					inFlight.decrementAndGet();
+				}
+			}
+		});
+		long start = System.nanoTime();
+		try {
+			future.get(Math.max(0, budgetNanos - waitedNanos), TimeUnit.NANOSECONDS);
+			complete(state, future);
+		} catch (ExecutionException e) {
+			complete(state, future);
+		} catch (TimeoutException e) {
+			// the cost is recorded when it finishes
+			state.pending = future;
+			state.stale = true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			state.pending = future;
+			state.stale = true;
+		}
+		waitedNanos += System.nanoTime() - start;
+		return state;
+	}
+
+	private void complete(State state, Future<Object> future) {
+		try {
+			state.value = future.get();
+			state.stale = false;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			state.stale = true;
+		} catch (ExecutionException e) {
+			LOG.error("Error evaluating gauge:", e.getCause());
+			state.stale = true;
+		}
+		record(state, state.costNanos);
+	}
+
+	private void record(State state, long costNanos) {
+		state.costNanos = costNanos;
+		if (costNanos <= budgetNanos) {
+			state.overruns = 0;
+			state.demoted = false;
+			return;
+		}
+
+		state.overruns++;
+		if (state.overruns >= demoteAfter) {
+			state.demoted = true;
+		}
+		if (state.demoted) {
+			state.skip = demotedInterval - 1;
+		}
+	}
+
+	private ThreadPoolExecutor executor() {
+		if (executor == null) {
+			// at most maxThreads evaluations are in flight, so a queued one always has a thread coming
+			executor = new ThreadPoolExecutor(maxThreads, maxThreads, 60, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread thread = new Thread(r, "elasticsearch-reporter-gauge");
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+			executor.allowCoreThreadTimeOut(true);
+		}
+		return executor;
+	}
+
+	public void shutdown() {
+		if (executor != null) {
+			executor.shutdownNow();
+			executor = null;
+		}
+	}
+}
@@ -0,0 +1,53 @@
+package com.behase.kafka;
+
+import org.joda.time.DateTime;
+import org.joda.time.Period;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
+
+/**
+ * How often a new index is created. The suffix appended to the index prefix is derived from the tick timestamp.
+ */
+public enum IndexGranularity {
+	HOURLY("yyyy.MM.dd.HH", Period.hours(1)),
+	DAILY("yyyy.MM.dd", Period.days(1)),
+	WEEKLY("xxxx.'w'ww", Period.weeks(1));
+
+	private final DateTimeFormatter formatter;
+	private final Period period;
+
+	IndexGranularity(String pattern, Period period) {
+		this.formatter = DateTimeFormat.forPattern(pattern);
+		this.period = period;
+	}
+
+	public String format(DateTime epoch) {
+		return formatter.withZone(epoch.getZone()).print(epoch);
+	}
+
+	/**
+	 * @return start of the period of the suffix, or null if the suffix was not created by this granularity
+	 */
+	public DateTime parse(String suffix) {
+		try {
+			DateTime start = formatter.parseDateTime(suffix);
+			return format(start).equals(suffix) ? start : null;
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return end (exclusive) of the period starting at start
+	 */
+	public DateTime end(DateTime start) {
+		return start.plus(period);
+	}
+
+	public static IndexGranularity of(String name) {
+		if (name == null || name.length() == 0) {
+			return DAILY;
+		}
+		return valueOf(name.trim().toUpperCase());
+	}
+}
@@ -0,0 +1,232 @@
+package com.behase.kafka;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.yammer.metrics.core.VirtualMachineMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.behase.kafka.ElasticsearchReporter.isEmpty;
+import static com.behase.kafka.ElasticsearchReporter.replaceSpecialChars;
+
+/**
+ * Collects JVM metrics with tiered probes.
+ * <p>
+ * Cheap probes (heap, threads count, GC deltas, buffer pools, allocation rate, safepoint time) run every tick.
+ * Expensive probes (memory pools, thread states which need a ThreadInfo of every thread) run every
+ * expensiveInterval ticks. Not thread-safe, it is used by the tick thread only.
+ */
+public class JvmMetricsCollector {
+	private static final Logger LOG = LoggerFactory.getLogger(JvmMetricsCollector.class);
+
+	private final VirtualMachineMetrics vm;
+	private final int expensiveInterval;
+	private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+	private final List<GarbageCollectorMXBean> garbageCollectors = ManagementFactory.getGarbageCollectorMXBeans();
+	private int ticks = 0;
+	private long lastNanos = 0;
+
+	// GC deltas
+	private final Map<String, long[]> lastGc = new HashMap<String, long[]>();
+
+	// allocation rate, from the bytes allocated per thread (HotSpot only)
+	private Method threadAllocatedBytes;
+	private Map<Long, Long> lastAllocated;
+
+	// safepoints, HotSpot only
+	private Object hotspotRuntime;
+	private Method totalSafepointTime;
+	private Method safepointCount;
+	private long lastSafepointTime = -1;
+	private long lastSafepointCount = -1;
+
+	public JvmMetricsCollector(VirtualMachineMetrics vm, int expensiveInterval) {
+		this.vm = vm;
+		this.expensiveInterval = Math.max(1, expensiveInterval);
+
+		try {
+			Class<?> hotspotThreads = Class.forName("com.sun.management.ThreadMXBean");
+			if (hotspotThreads.isInstance(threads)
+					&& (Boolean)hotspotThreads.getMethod("isThreadAllocatedMemoryEnabled").invoke(threads)) {
+				threadAllocatedBytes = hotspotThreads.getMethod("getThreadAllocatedBytes", long[].class);
+			}
+		} catch (Throwable e) {
+			LOG.debug("Allocation metrics are not available: {}", e.toString());
+			threadAllocatedBytes = null;
+		}
+
+		try {
+			Class<?> helper = Class.forName("sun.management.ManagementFactoryHelper");
+			Method getHotspotRuntimeMBean = helper.getMethod("getHotspotRuntimeMBean");
+			getHotspotRuntimeMBean.setAccessible(true);
+			hotspotRuntime = getHotspotRuntimeMBean.invoke(null);
+			totalSafepointTime = hotspotRuntime.getClass().getMethod("getTotalSafepointTime");
+			totalSafepointTime.setAccessible(true);
+			safepointCount = hotspotRuntime.getClass().getMethod("getSafepointCount");
+			safepointCount.setAccessible(true);
+		} catch (Throwable e) {
+			LOG.debug("Safepoint metrics are not available: {}", e.toString());
+			hotspotRuntime = null;
+		}
+	}
+
+	public void collect(JsonGenerator json) throws IOException {
+		final long nanos = System.nanoTime();
+		final double seconds = lastNanos == 0 ? 0 : (nanos - lastNanos) / 1e9;
+		lastNanos = nanos;
+
+		json.writeNumberField("memory.heap_usage", vm.heapUsage());
+		json.writeNumberField("memory.non_heap_usage", vm.nonHeapUsage());
+		writeAllocation(json, seconds);
+		writeBufferPools(json);
+
+		json.writeNumberField("daemon_thread_count", threads.getDaemonThreadCount());
+		json.writeNumberField("thread_count", threads.getThreadCount());
+		json.writeNumberField("uptime", vm.uptime());
+		json.writeNumberField("fd_usage", vm.fileDescriptorUsage());
+
+		writeGarbageCollectors(json);
+		writeSafepoints(json);
+
+		if (ticks++ % expensiveInterval == 0) {
+			writeMemoryPools(json);
+			writeThreadStates(json);
+		}
+	}
+
+	/**
+	 * Sum of the bytes allocated by each live thread since the previous tick. Allocations of threads which ended
+	 * in between are not counted.
+	 */
+	private void writeAllocation(JsonGenerator json, double seconds) throws IOException {
+		if (threadAllocatedBytes == null) {
+			return;
+		}
+		final long[] ids = threads.getAllThreadIds();
+		final long[] bytes;
+		try {
+			bytes = (long[])threadAllocatedBytes.invoke(threads, (Object)ids);
+		} catch (Exception e) {
+			LOG.debug("Allocation metrics are not available: {}", e.toString());
+			threadAllocatedBytes = null;
+			return;
+		}
+
+		Map<Long, Long> allocated = new HashMap<Long, Long>(ids.length * 2);
+		long total = 0;
+		for (int i = 0; i < ids.length; i++) {
+			if (bytes[i] < 0) {
+				// ended meanwhile
+				continue;
+			}
+			allocated.put(ids[i], bytes[i]);
+			if (lastAllocated != null) {
+				Long last = lastAllocated.get(ids[i]);
+				total += last == null ? bytes[i] : bytes[i] - last;
+			}
+		}
+		if (lastAllocated != null) {
+			json.writeNumberField("memory.allocated_bytes", total);
+			if (seconds > 0) {
+				json.writeNumberField("memory.allocation_rate", total / seconds);
+			}
+		}
+		lastAllocated = allocated;
+	}
+
+	private void writeBufferPools(JsonGenerator json) throws IOException {
+		for (Map.Entry<String, VirtualMachineMetrics.BufferPoolStats> entry : vm.getBufferPoolStats().entrySet()) {
+			final String name = "buffer_pools." + replaceSpecialChars(entry.getKey());
+			json.writeNumberField(name + ".count", entry.getValue().getCount());
+			json.writeNumberField(name + ".memory_used", entry.getValue().getMemoryUsed());
+			json.writeNumberField(name + ".total_capacity", entry.getValue().getTotalCapacity());
+		}
+	}
+
+	private void writeGarbageCollectors(JsonGenerator json) throws IOException {
+		for (GarbageCollectorMXBean gc : garbageCollectors) {
+			if (isEmpty(gc.getName())) {
+				continue;
+			}
+			final String name = "gc." + replaceSpecialChars(gc.getName());
+			final long time = gc.getCollectionTime();
+			final long runs = gc.getCollectionCount();
+			json.writeNumberField(name + ".time", time);
+			json.writeNumberField(name + ".runs", runs);
+
+			long[] last = lastGc.get(name);
+			if (last == null) {
+				lastGc.put(name, new long[] {time, runs});
+				continue;
+			}
+			json.writeNumberField(name + ".time_delta", time - last[0]);
+			json.writeNumberField(name + ".runs_delta", runs - last[1]);
+			last[0] = time;
+			last[1] = runs;
+		}
+	}
+
+	private void writeSafepoints(JsonGenerator json) throws IOException {
+		if (hotspotRuntime == null) {
+			return;
+		}
+		long time;
+		long count;
+		try {
+			time = (Long)totalSafepointTime.invoke(hotspotRuntime);
+			count = (Long)safepointCount.invoke(hotspotRuntime);
+		} catch (Exception e) {
+			LOG.debug("Safepoint metrics are not available: {}", e.toString());
+			hotspotRuntime = null;
+			return;
+		}
+		if (lastSafepointCount >= 0) {
+			json.writeNumberField("safepoint.time_delta", time - lastSafepointTime);
+			json.writeNumberField("safepoint.count_delta", count - lastSafepointCount);
+		}
+		lastSafepointTime = time;
+		lastSafepointCount = count;
+	}
+
+	private void writeMemoryPools(JsonGenerator json) throws IOException {
+		for (Map.Entry<String, Double> pool : vm.memoryPoolUsage().entrySet()) {
+			if (isEmpty(pool.getKey())) {
+				continue;
+			}
+			String key = replaceSpecialChars(pool.getKey());
+			json.writeNumberField("memory.memory_pool_usages." + key, pool.getValue());
+		}
+	}
+
+	private void writeThreadStates(JsonGenerator json) throws IOException {
+		Map<Thread.State, Integer> counts = new EnumMap<Thread.State, Integer>(Thread.State.class);
+		for (Thread.State state : Thread.State.values()) {
+			counts.put(state, 0);
+		}
+
+		// without stack traces and locks
+		ThreadInfo[] infos = threads.getThreadInfo(threads.getAllThreadIds(), 0);
+		int alive = 0;
+		for (ThreadInfo info : infos) {
+			if (info != null) {
+				counts.put(info.getThreadState(), counts.get(info.getThreadState()) + 1);
+				alive++;
+			}
+		}
+
+		for (Map.Entry<Thread.State, Integer> entry : counts.entrySet()) {
+			String key = replaceSpecialChars(entry.getKey().toString().toLowerCase());
+			json.writeNumberField("thread_states." + key, alive == 0 ? 0.0 : entry.getValue() / (double)alive);
+		}
+	}
+}
@@ -0,0 +1,111 @@
+package com.behase.kafka;
+
+import com.yammer.metrics.core.MetricsRegistry;
+import kafka.metrics.KafkaMetricsConfig;
+import kafka.utils.VerifiableProperties;
+import org.apache.kafka.common.MetricName;
+import org.apache.kafka.common.metrics.KafkaMetric;
+import org.apache.kafka.common.metrics.MetricsReporter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reporter for org.apache.kafka.common.metrics (metric.reporters of producer, consumer and broker).
+ * It takes the same kafka.elasticsearch.metrics.* properties as {@link KafkaElasticsearchMetricsReporter}
+ * and feeds the metrics to an {@link ElasticsearchReporter}.
+ * <p>
+ * In a broker whose {@link KafkaElasticsearchMetricsReporter} is running, the metrics are attached to its reporter,
+ * so that they are sent with the same ticks, bulk requests, sinks and connections. Otherwise (producer and consumer
+ * applications) this reporter runs its own {@link ElasticsearchReporter}.
+ */
+public class KafkaElasticsearchClientMetricsReporter implements MetricsReporter {
+	private static final Logger LOG = LoggerFactory.getLogger(KafkaElasticsearchClientMetricsReporter.class);
+
+	protected final KafkaElasticsearchMetricsReporter settings = new KafkaElasticsearchMetricsReporter();
+	protected ElasticsearchReporter reporter;
+	protected boolean enabled = false;
+	protected boolean running = false;
+	protected boolean attached = false;
+	protected long pollingPeriodInSeconds;
+	// the metrics of this reporter, to detach them from a shared reporter
+	protected final Map<MetricName, KafkaMetric> metrics = new LinkedHashMap<MetricName, KafkaMetric>();
+
+	@Override
+	public void configure(Map<String, ?> configs) {
+		Properties properties = new Properties();
+		for (Map.Entry<String, ?> entry : configs.entrySet()) {
+			if (entry.getValue() != null) {
+				properties.setProperty(entry.getKey(), entry.getValue().toString());
+			}
+		}
+		VerifiableProperties props = new VerifiableProperties(properties);
+
+		settings.readConfig(props);
+		// JVM metrics are reported by KafkaElasticsearchMetricsReporter by default
+		settings.getVmInfo = props.getBoolean("kafka.elasticsearch.metrics.client.getVmInfo", false);
+		// several clients may run on one host, and the same client.id on many hosts
+		if (settings.phaseKey == null && props.containsKey("client.id")) {
+			settings.phaseKey = ElasticsearchReporter.localAddresses() + "/" + props.getString("client.id");
+		}
+		settings.validate();
+
+		enabled = props.getBoolean("kafka.elasticsearch.metrics.reporter.enabled", false);
+		pollingPeriodInSeconds = new KafkaMetricsConfig(props).pollingIntervalSecs();
+	}
+
+	@Override
+	public synchronized void init(List<KafkaMetric> metrics) {
+		if (reporter == null) {
+			ElasticsearchReporter brokerReporter = KafkaElasticsearchMetricsReporter.getBrokerReporter();
+			attached = brokerReporter != null;
+			reporter = attached ? brokerReporter : settings.createReporter(new MetricsRegistry());
+			if (attached) {
+				LOG.info("Attached KafkaElasticsearchClientMetricsReporter to the running KafkaElasticsearchMetricsReporter");
+			}
+		}
+		for (KafkaMetric metric : metrics) {
+			metricChange(metric);
+		}
+
+		if (enabled && !attached && !running) {
+			reporter.start(pollingPeriodInSeconds, TimeUnit.SECONDS);
+			running = true;
+			LOG.info(String.format("Started KafkaElasticsearchClientMetricsReporter with polling period %d seconds", pollingPeriodInSeconds));
+		}
+	}
+
+	@Override
+	public synchronized void metricChange(KafkaMetric metric) {
+		this.metrics.put(metric.metricName(), metric);
+		reporter.addKafkaMetric(metric);
+	}
+
+	/**
+	 * Called by clients newer than 0.8.2, which have MetricsReporter#metricRemoval.
+	 */
+	public synchronized void metricRemoval(KafkaMetric metric) {
+		this.metrics.remove(metric.metricName());
+		reporter.removeKafkaMetric(metric);
+	}
+
+	@Override
+	public synchronized void close() {
+		if (attached) {
+			// the shared reporter keeps running for the broker
+			for (KafkaMetric metric : metrics.values()) {
+				reporter.removeKafkaMetric(metric);
+			}
+			metrics.clear();
+		} else if (running) {
+			reporter.shutdown();
+			running = false;
+			LOG.info("Stopped KafkaElasticsearchClientMetricsReporter");
+		}
+	}
+}
@@ -2,12 +2,17 @@ package com.behase.kafka;
 
 import com.yammer.metrics.Metrics;
 import com.yammer.metrics.core.MetricPredicate;
+import com.yammer.metrics.core.MetricsRegistry;
 import kafka.metrics.KafkaMetricsConfig;
 import kafka.metrics.KafkaMetricsReporter;
 import kafka.utils.VerifiableProperties;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 public class KafkaElasticsearchMetricsReporter implements KafkaMetricsReporter, KafkaElasticsearchMetricsReporterMBean {
@@ -15,45 +20,71 @@ public class KafkaElasticsearchMetricsReporter implements KafkaMetricsReporter,
 
 	public static final String DEFAULT_ES_INDEX_PREFIX = "kafka-metrics-";
 
+	// the running reporter of the broker, which the client metrics of the same JVM are attached to
+	private static volatile ElasticsearchReporter brokerReporter;
+
 	protected ElasticsearchReporter reporter;
 	protected boolean initialized = false;
 	protected boolean running = false;
 
 	protected String esNodes;
+	protected String hostname;
+	protected String brokerId;
 	protected String esIndexPrefix;
 	protected MetricPredicate predicate;
 	protected String esTtl;
 	protected boolean getVmInfo;
+	protected int vmExpensiveInterval;
 	protected boolean enableReset;
+	protected boolean enableDelta;
+	protected boolean deterministicIds;
+	protected boolean alignTicks;
+	protected String phaseKey;
+	protected boolean installTemplate;
+	protected int templateShards;
+	protected String templateRefreshInterval;
+	protected IndexGranularity indexGranularity;
+	protected long retentionMillis;
+	protected long gaugeBudgetMillis;
+	protected int gaugeDemoteAfter;
+	protected int gaugeDemotedInterval;
+	protected int gaugeThreads;
+	protected String topKFamilies;
+	protected int topK;
+	protected TopKSelector.RankBy topKRankBy;
+	protected int profileTopN;
+	protected int profileInterval;
+	protected String pullHost;
+	protected int pullPort;
+	protected SnapshotServer snapshotServer;
+	protected long budgetBytes;
+	protected int budgetDocs;
+	protected String criticalMetrics;
+	protected String bestEffortMetrics;
+	protected int retries;
+	protected long retryBackoffMillis;
+	protected boolean primaryEnabled;
+	protected String fileDir;
+	protected String filePrefix;
+	protected boolean fileGzip;
+	protected long fileRollBytes;
+	protected int fileMaxSegments;
+	protected int fileBufferBytes;
+	protected int fileMaxPending;
+	protected final List<MetricsSink> sinks = new ArrayList<MetricsSink>();
 
 	@Override
 	public void init(VerifiableProperties props) {
 		if (!initialized) {
 			KafkaMetricsConfig metricsConfig = new KafkaMetricsConfig(props);
 
-			esNodes = props.getString("kafka.elasticsearch.metrics.nodes", null);
-			esIndexPrefix = props.getString("kafka.elasticsearch.metrics.indexPrefix", DEFAULT_ES_INDEX_PREFIX);
-			esTtl = props.getString("kafka.elasticsearch.metrics.ttl", null);
-			getVmInfo = props.getBoolean("kafka.elasticsearch.metrics.getVmInfo", true);
-			enableReset = props.getBoolean("kafka.elasticsearch.metrics.enableReset", true);
-
-			predicate = MetricPredicate.ALL;
+			readConfig(props);
 
 			// validate
 			validate();
 
 			// init
-			reporter = new ElasticsearchReporter(
-					Metrics.defaultRegistry(),
-					esNodes,
-					predicate,
-					esIndexPrefix,
-					null,
-					esTtl,
-					getVmInfo,
-					enableReset,
-					null
-			);
+			reporter = createReporter();
 
 			if (props.getBoolean("kafka.elasticsearch.metrics.reporter.enabled", false)) {
 				initialized = true;
@@ -63,8 +94,88 @@ public class KafkaElasticsearchMetricsReporter implements KafkaMetricsReporter,
 		}
 	}
 
+	protected void readConfig(VerifiableProperties props) {
+		esNodes = props.getString("kafka.elasticsearch.metrics.nodes", null);
+		esIndexPrefix = props.getString("kafka.elasticsearch.metrics.indexPrefix", DEFAULT_ES_INDEX_PREFIX);
+		hostname = props.getString("kafka.elasticsearch.metrics.hostname", null);
+		brokerId = props.getString("broker.id", null);
+		esTtl = props.getString("kafka.elasticsearch.metrics.ttl", null);
+		getVmInfo = props.getBoolean("kafka.elasticsearch.metrics.getVmInfo", true);
+		vmExpensiveInterval = props.getInt("kafka.elasticsearch.metrics.vmExpensiveInterval", 6);
+		enableReset = props.getBoolean("kafka.elasticsearch.metrics.enableReset", true);
+		enableDelta = props.getBoolean("kafka.elasticsearch.metrics.enableDelta", false);
+		deterministicIds = props.getBoolean("kafka.elasticsearch.metrics.deterministicIds", false);
+		alignTicks = props.getBoolean("kafka.elasticsearch.metrics.alignTicks", true);
+		phaseKey = props.getString("kafka.elasticsearch.metrics.phaseKey", brokerId);
+		installTemplate = props.getBoolean("kafka.elasticsearch.metrics.installTemplate", true);
+		templateShards = props.getInt("kafka.elasticsearch.metrics.templateShards", 1);
+		templateRefreshInterval = props.getString("kafka.elasticsearch.metrics.templateRefreshInterval", "30s");
+		indexGranularity = IndexGranularity.of(props.getString("kafka.elasticsearch.metrics.indexGranularity", "daily"));
+		retentionMillis = ElasticsearchReporter.parseDurationMillis(
+				props.getString("kafka.elasticsearch.metrics.retention", null));
+		gaugeBudgetMillis = props.getLong("kafka.elasticsearch.metrics.gaugeBudgetMillis", 0);
+		gaugeDemoteAfter = props.getInt("kafka.elasticsearch.metrics.gaugeDemoteAfter", 3);
+		gaugeDemotedInterval = props.getInt("kafka.elasticsearch.metrics.gaugeDemotedInterval", 6);
+		gaugeThreads = props.getInt("kafka.elasticsearch.metrics.gaugeThreads", GaugeEvaluator.DEFAULT_MAX_THREADS);
+		topKFamilies = props.getString("kafka.elasticsearch.metrics.topKFamilies", null);
+		topK = props.getInt("kafka.elasticsearch.metrics.topK", 10);
+		topKRankBy = TopKSelector.RankBy.valueOf(
+				props.getString("kafka.elasticsearch.metrics.topKRankBy", "value").trim().toUpperCase());
+		profileTopN = props.getInt("kafka.elasticsearch.metrics.profileTopN", 0);
+		profileInterval = props.getInt("kafka.elasticsearch.metrics.profileInterval", 60);
+		pullHost = props.getString("kafka.elasticsearch.metrics.pullHost", "127.0.0.1");
+		pullPort = props.getInt("kafka.elasticsearch.metrics.pullPort", -1);
+		budgetBytes = props.getLong("kafka.elasticsearch.metrics.budgetBytes", 0);
+		budgetDocs = props.getInt("kafka.elasticsearch.metrics.budgetDocs", 0);
+		criticalMetrics = props.getString("kafka.elasticsearch.metrics.criticalMetrics", null);
+		bestEffortMetrics = props.getString("kafka.elasticsearch.metrics.bestEffortMetrics", null);
+		retries = props.getInt("kafka.elasticsearch.metrics.retries", 0);
+		retryBackoffMillis = props.getLong("kafka.elasticsearch.metrics.retryBackoffMillis", 1000);
+		primaryEnabled = props.getBoolean("kafka.elasticsearch.metrics.primaryEnabled", true);
+		sinks.clear();
+		readTargets(props);
+		readFileSink(props);
+
+		predicate = MetricPredicate.ALL;
+	}
+
+	protected void readTargets(VerifiableProperties props) {
+		String names = props.getString("kafka.elasticsearch.metrics.targets", null);
+		if (names == null) {
+			return;
+		}
+		for (String name : names.split(",")) {
+			name = name.trim();
+			if (name.length() == 0) {
+				continue;
+			}
+			String key = "kafka.elasticsearch.metrics.target." + name + ".";
+			String nodes = props.getString(key + "nodes", null);
+			if (nodes == null) {
+				throw new IllegalArgumentException(key + "nodes is null.");
+			}
+			ElasticsearchTarget target = new ElasticsearchTarget(name, nodes,
+					props.getString(key + "indexPrefix", esIndexPrefix));
+			// a retried bulk may duplicate documents without deterministic ids
+			target.setRetryPolicy(props.getInt(key + "retries", deterministicIds ? 3 : 0),
+					props.getLong(key + "retryBackoffMillis", 1000));
+			target.setMaxPending(props.getInt(key + "maxPending", 2));
+			sinks.add(target);
+		}
+	}
+
+	protected void readFileSink(VerifiableProperties props) {
+		fileDir = props.getString("kafka.elasticsearch.metrics.file.dir", null);
+		filePrefix = props.getString("kafka.elasticsearch.metrics.file.prefix", esIndexPrefix);
+		fileGzip = props.getBoolean("kafka.elasticsearch.metrics.file.gzip", false);
+		fileRollBytes = props.getLong("kafka.elasticsearch.metrics.file.rollBytes", 64L * 1024 * 1024);
+		fileMaxSegments = props.getInt("kafka.elasticsearch.metrics.file.maxSegments", 48);
+		fileBufferBytes = props.getInt("kafka.elasticsearch.metrics.file.bufferBytes", 1 << 16);
+		fileMaxPending = props.getInt("kafka.elasticsearch.metrics.file.maxPending", 2);
+	}
+
 	public void validate() {
-		if (esNodes == null) {
+		if (esNodes == null && primaryEnabled) {
 			throw new IllegalArgumentException("kafka.elasticsearch.metrics.nodes is null.");
 		}
 	}
@@ -72,7 +183,18 @@ public class KafkaElasticsearchMetricsReporter implements KafkaMetricsReporter,
 	@Override
 	public void startReporter(long pollingPeriodInSeconds) {
 		if (initialized && !running) {
+			if (pullPort >= 0) {
+				try {
+					snapshotServer = new SnapshotServer(pullHost, pullPort);
+					snapshotServer.start();
+				} catch (IOException e) {
+					LOG.error("Fail! Starting the pull endpoint on {}:{}.", pullHost, pullPort, e);
+					snapshotServer = null;
+				}
+			}
+			reporter.setSnapshotServer(snapshotServer);
 			reporter.start(pollingPeriodInSeconds, TimeUnit.SECONDS);
+			brokerReporter = reporter;
 			running = true;
 			LOG.info(String.format("Started KafkaElasticsearchMetricsReporter with polling period %d seconds", pollingPeriodInSeconds));
 		}
@@ -81,22 +203,111 @@ public class KafkaElasticsearchMetricsReporter implements KafkaMetricsReporter,
 	@Override
 	public void stopReporter() {
 		if (initialized && running) {
-			reporter.shutdown();
+			// keep the reporter (and its state) for the next startReporter
+			reporter.stop();
+			if (brokerReporter == reporter) {
+				brokerReporter = null;
+			}
+			if (snapshotServer != null) {
+				snapshotServer.stop();
+				snapshotServer = null;
+			}
 			running = false;
 			LOG.info("Stopped KafkaElasticsearchMetricsReporter");
+		}
+	}
+
+	/**
+	 * @return the running reporter of the broker, or null
+	 */
+	public static ElasticsearchReporter getBrokerReporter() {
+		return brokerReporter;
+	}
 
-			reporter = new ElasticsearchReporter(
-					Metrics.defaultRegistry(),
-					esNodes,
-					predicate,
-					esIndexPrefix,
-					null,
-					esTtl,
-					getVmInfo,
-					enableReset,
-					null
-			);
+	protected ElasticsearchReporter createReporter() {
+		return createReporter(Metrics.defaultRegistry());
+	}
+
+	protected ElasticsearchReporter createReporter(MetricsRegistry registry) {
+		ElasticsearchReporter reporter = new ElasticsearchReporter(
+				registry,
+				esNodes,
+				predicate,
+				esIndexPrefix,
+				null,
+				esTtl,
+				getVmInfo,
+				enableReset,
+				null
+		);
+		if (hostname != null) {
+			reporter.setHostname(hostname);
+		} else if (brokerId != null) {
+			reporter.setProvisionalHostname("broker-" + brokerId);
+		}
+		reporter.setEnableDelta(enableDelta);
+		reporter.setDeterministicIds(deterministicIds);
+		reporter.setVmExpensiveInterval(vmExpensiveInterval);
+		reporter.setAlignTicks(alignTicks);
+		reporter.setPhaseKey(phaseKey);
+		reporter.setInstallTemplate(installTemplate);
+		reporter.setTemplateNumberOfShards(templateShards);
+		reporter.setTemplateRefreshInterval(templateRefreshInterval);
+		reporter.setIndexGranularity(indexGranularity);
+		reporter.setRetentionMillis(retentionMillis);
+		if (gaugeBudgetMillis > 0) {
+			reporter.setGaugeEvaluator(new GaugeEvaluator(gaugeBudgetMillis, gaugeDemoteAfter, gaugeDemotedInterval,
+					gaugeThreads));
+		}
+		if (topKFamilies != null && topKFamilies.trim().length() > 0) {
+			reporter.setTopKSelector(new TopKSelector(topKFamilies, topK, topKRankBy));
+		}
+		if (profileTopN > 0) {
+			reporter.setProfiler(new MetricProfiler(profileTopN), profileInterval);
+		}
+		reporter.setRetryPolicy(retries, retryBackoffMillis);
+		reporter.setPrimaryEnabled(primaryEnabled);
+		for (MetricsSink sink : sinks) {
+			reporter.addSink(sink);
+		}
+		if (fileDir != null) {
+			// shared with the other reporters of this JVM writing there
+			NdjsonFileSink fileSink = NdjsonFileSink.acquire("file", new File(fileDir), filePrefix, fileGzip,
+					fileRollBytes, fileMaxSegments);
+			fileSink.setBufferBytes(fileBufferBytes);
+			fileSink.setMaxPending(fileMaxPending);
+			reporter.addSink(fileSink);
+		}
+		if (budgetBytes > 0 || budgetDocs > 0) {
+			reporter.setLoadShedder(new LoadShedder(budgetBytes, budgetDocs, criticalMetrics, bestEffortMetrics));
+		}
+		return reporter;
+	}
+
+	@Override
+	public boolean isPrimaryEnabled() {
+		return primaryEnabled;
+	}
+
+	@Override
+	public void setPrimaryEnabled(boolean primaryEnabled) {
+		this.primaryEnabled = primaryEnabled;
+		if (reporter != null) {
+			reporter.setPrimaryEnabled(primaryEnabled);
+		}
+	}
+
+	@Override
+	public String[] getMetricProfile() {
+		if (reporter == null || reporter.getProfiler() == null) {
+			return new String[0];
+		}
+		List<MetricProfiler.Cost> top = reporter.getProfiler().getTop();
+		String[] profile = new String[top.size()];
+		for (int i = 0; i < profile.length; i++) {
+			profile[i] = top.get(i).toString();
 		}
+		return profile;
 	}
 
 	@Override
@@ -3,4 +3,19 @@ package com.behase.kafka;
 import kafka.metrics.KafkaMetricsReporterMBean;
 
 public interface KafkaElasticsearchMetricsReporterMBean extends KafkaMetricsReporterMBean {
+	/**
+	 * @return the most expensive metrics of the last profile window, or empty if profiling is disabled
+	 */
+	String[] getMetricProfile();
+
+	/**
+	 * @return false if nothing is sent to kafka.elasticsearch.metrics.nodes
+	 */
+	boolean isPrimaryEnabled();
+
+	/**
+	 * Stop or resume sending to kafka.elasticsearch.metrics.nodes, e.g. to keep metrics off the network during
+	 * an incident. The other sinks (targets, files) are not affected.
+	 */
+	void setPrimaryEnabled(boolean primaryEnabled);
 }
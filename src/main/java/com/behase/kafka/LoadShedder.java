@@ -0,0 +1,229 @@
+package com.behase.kafka;
+
+import com.yammer.metrics.core.MetricName;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Applies a per-tick byte and document budget to the bulk payload.
+ * <p>
+ * Documents are held per priority class during a tick. At the end of the tick the classes are admitted highest first.
+ * The class which does not fit as a whole is sampled, starting from a position which rotates across ticks so that
+ * every document gets through from time to time, and the classes below it are dropped.
+ * Not thread-safe, it is used by the tick thread only.
+ */
+public class LoadShedder {
+	public enum Priority {
+		CRITICAL, NORMAL, BEST_EFFORT
+	}
+
+	private static class Document {
+		final String actionLine;
+		final String json;
+		final Runnable onAdmitted;
+
+		Document(String actionLine, String json, Runnable onAdmitted) {
+			this.actionLine = actionLine;
+			this.json = json;
+			this.onAdmitted = onAdmitted;
+		}
+
+		long length() {
+			return actionLine.length() + json.length() + 2;
+		}
+	}
+
+	private final long maxBytes;
+	private final int maxDocs;
+	private final List<String[]> criticalPatterns;
+	private final List<String[]> bestEffortPatterns;
+	private final Map<MetricName, Priority> priorities = new HashMap<MetricName, Priority>();
+	private final Map<Priority, List<Document>> documents = new EnumMap<Priority, List<Document>>(Priority.class);
+	private final Map<Priority, Integer> rotations = new EnumMap<Priority, Integer>(Priority.class);
+	private final long[] shedDocs = new long[Priority.values().length];
+	private final long[] shedBytes = new long[Priority.values().length];
+	private long admittedBytes;
+	private int admittedDocs;
+	private int ticks = 0;
+
+	/**
+	 * @param maxBytes max bytes per tick, 0 or negative for no limit
+	 * @param maxDocs max documents per tick, 0 or negative for no limit
+	 * @param criticalPatterns "group:type:name" patterns, comma separated. "*" or an omitted segment matches any
+	 * @param bestEffortPatterns same as criticalPatterns. Metrics matching neither are NORMAL
+	 */
+	public LoadShedder(long maxBytes, int maxDocs, String criticalPatterns, String bestEffortPatterns) {
+		this.maxBytes = maxBytes > 0 ? maxBytes : Long.MAX_VALUE;
+		this.maxDocs = maxDocs > 0 ? maxDocs : Integer.MAX_VALUE;
+		this.criticalPatterns = parsePatterns(criticalPatterns);
+		this.bestEffortPatterns = parsePatterns(bestEffortPatterns);
+		for (Priority priority : Priority.values()) {
+			documents.put(priority, new ArrayList<Document>());
+			rotations.put(priority, 0);
+		}
+	}
+
+	public Priority classify(MetricName name) {
+		Priority priority = priorities.get(name);
+		if (priority == null) {
+			priority = classify(name.getGroup(), name.getType(), name.getName());
+			priorities.put(name, priority);
+		}
+		return priority;
+	}
+
+	public Priority classify(String group, String type, String name) {
+		if (matches(criticalPatterns, group, type, name)) {
+			return Priority.CRITICAL;
+		} else if (matches(bestEffortPatterns, group, type, name)) {
+			return Priority.BEST_EFFORT;
+		}
+		return Priority.NORMAL;
+	}
+
+	public void add(Priority priority, String actionLine, String json) {
+		add(priority, actionLine, json, null);
+	}
+
+	/**
+	 * @param onAdmitted run if the document is admitted, e.g. to reset the metric, null if nothing
+	 */
+	public void add(Priority priority, String actionLine, String json, Runnable onAdmitted) {
+		documents.get(priority).add(new Document(actionLine, json, onAdmitted));
+	}
+
+	/**
+	 * Append the admitted documents of this tick to out, and count the rest as shed.
+	 */
+	public void drainTo(Appendable out) throws IOException {
+		drainTo(out, null);
+	}
+
+	/**
+	 * Append the admitted documents of this tick to out, and count the rest as shed.
+	 *
+	 * @param admittedJson the admitted documents without action lines are appended to it too, if not null
+	 */
+	public void drainTo(Appendable out, Appendable admittedJson) throws IOException {
+		long bytes = 0;
+		int docs = 0;
+		boolean full = false;
+		for (Priority priority : Priority.values()) {
+			final List<Document> list = documents.get(priority);
+			final int i = priority.ordinal();
+			shedDocs[i] = 0;
+			shedBytes[i] = 0;
+
+			final int n = list.size();
+			final boolean partial = !full && !fits(list, bytes, docs);
+			final int start = partial ? rotations.get(priority) % n : 0;
+			int admitted = 0;
+			for (int j = 0; j < n; j++) {
+				Document document = list.get((start + j) % n);
+				long length = document.length();
+				if (full || docs >= maxDocs || bytes + length > maxBytes) {
+					shedDocs[i]++;
+					shedBytes[i] += length;
+					continue;
+				}
+				out.append(document.actionLine).append("\n").append(document.json).append("\n");
+				if (admittedJson != null) {
+					admittedJson.append(document.json).append("\n");
+				}
+				if (document.onAdmitted != null) {
+					document.onAdmitted.run();
+				}
+				bytes += length;
+				docs++;
+				admitted++;
+			}
+			if (partial) {
+				rotations.put(priority, (start + admitted) % n);
+				full = true;
+			}
+			list.clear();
+		}
+		admittedBytes = bytes;
+		admittedDocs = docs;
+
+		if (++ticks % ElasticsearchReporter.DELTA_MAX_AGE == 0) {
+			priorities.clear();
+		}
+	}
+
+	public boolean isShedding() {
+		for (long count : shedDocs) {
+			if (count > 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return documents of the priority shed in the last tick
+	 */
+	public long getShedDocs(Priority priority) {
+		return shedDocs[priority.ordinal()];
+	}
+
+	/**
+	 * @return bytes (characters) of the priority shed in the last tick
+	 */
+	public long getShedBytes(Priority priority) {
+		return shedBytes[priority.ordinal()];
+	}
+
+	public long getAdmittedBytes() {
+		return admittedBytes;
+	}
+
+	public int getAdmittedDocs() {
+		return admittedDocs;
+	}
+
+	private boolean fits(List<Document> list, long bytes, int docs) {
+		if (docs + list.size() > maxDocs) {
+			return false;
+		}
+		for (Document document : list) {
+			bytes += document.length();
+			if (bytes > maxBytes) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static List<String[]> parsePatterns(String patterns) {
+		List<String[]> result = new ArrayList<String[]>();
+		if (patterns == null) {
+			return result;
+		}
+		for (String pattern : patterns.split(",")) {
+			pattern = pattern.trim();
+			if (pattern.length() > 0) {
+				result.add(pattern.split(":", 3));
+			}
+		}
+		return result;
+	}
+
+	private static boolean matches(List<String[]> patterns, String group, String type, String name) {
+		for (String[] pattern : patterns) {
+			if (matches(pattern, 0, group) && matches(pattern, 1, type) && matches(pattern, 2, name)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean matches(String[] pattern, int i, String value) {
+		return i >= pattern.length || "*".equals(pattern[i]) || pattern[i].equals(value);
+	}
+}
@@ -0,0 +1,96 @@
+package com.behase.kafka;
+
+import com.yammer.metrics.core.Metric;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.MetricPredicate;
+import com.yammer.metrics.core.MetricsRegistryListener;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Flat index of the metrics to report, maintained by registry events.
+ * The predicate is evaluated once when a metric is added, and a tick only iterates over an array.
+ */
+public class MetricIndex implements MetricsRegistryListener {
+	private static final Entry[] EMPTY = new Entry[0];
+
+	public static class Entry {
+		public final MetricName name;
+		public final Metric metric;
+
+		public Entry(MetricName name, Metric metric) {
+			this.name = name;
+			this.metric = metric;
+		}
+	}
+
+	private final MetricPredicate predicate;
+	private final Map<MetricName, Integer> positions = new HashMap<MetricName, Integer>();
+	private Entry[] entries = new Entry[64];
+	private int size = 0;
+
+	private volatile Entry[] snapshot = EMPTY;
+	private volatile boolean dirty = false;
+
+	public MetricIndex(MetricPredicate predicate) {
+		this.predicate = predicate;
+	}
+
+	@Override
+	public synchronized void onMetricAdded(MetricName name, Metric metric) {
+		if (metric == null || !predicate.matches(name, metric)) {
+			return;
+		}
+
+		Integer position = positions.get(name);
+		if (position != null) {
+			entries[position] = new Entry(name, metric);
+		} else {
+			if (size == entries.length) {
+				entries = Arrays.copyOf(entries, size * 2);
+			}
+			entries[size] = new Entry(name, metric);
+			positions.put(name, size);
+			size++;
+		}
+		dirty = true;
+	}
+
+	@Override
+	public synchronized void onMetricRemoved(MetricName name) {
+		Integer position = positions.remove(name);
+		if (position == null) {
+			return;
+		}
+
+		// move the last entry into the hole
+		int last = --size;
+		if (position != last) {
+			entries[position] = entries[last];
+			positions.put(entries[position].name, position);
+		}
+		entries[last] = null;
+		dirty = true;
+	}
+
+	/**
+	 * @return entries at this moment. The array is copied only if the registry has changed since the last call.
+	 */
+	public Entry[] entries() {
+		if (dirty) {
+			synchronized (this) {
+				if (dirty) {
+					snapshot = Arrays.copyOf(entries, size);
+					dirty = false;
+				}
+			}
+		}
+		return snapshot;
+	}
+
+	public int size() {
+		return entries().length;
+	}
+}
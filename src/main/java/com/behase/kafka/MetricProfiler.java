@@ -0,0 +1,133 @@
+package com.behase.kafka;
+
+import com.yammer.metrics.core.MetricName;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Measures the time and bytes produced per metric across ticks, and keeps the top N most expensive metrics.
+ * Recording is done by the tick thread only. {@link #getTop()} can be read from any thread.
+ */
+public class MetricProfiler {
+	public static class Cost {
+		final MetricName name;
+		long totalNanos;
+		long maxNanos;
+		long totalBytes;
+		int samples;
+		long lastNanos;
+
+		Cost(MetricName name) {
+			this.name = name;
+		}
+
+		public MetricName getName() {
+			return name;
+		}
+
+		public long getAvgNanos() {
+			return samples == 0 ? 0 : totalNanos / samples;
+		}
+
+		public long getMaxNanos() {
+			return maxNanos;
+		}
+
+		public long getAvgBytes() {
+			return samples == 0 ? 0 : totalBytes / samples;
+		}
+
+		public int getSamples() {
+			return samples;
+		}
+
+		@Override
+		public String toString() {
+			return name.getMBeanName() + " avgMicros=" + getAvgNanos() / 1000 + " maxMicros=" + maxNanos / 1000
+					+ " avgBytes=" + getAvgBytes() + " samples=" + samples;
+		}
+	}
+
+	private static final Comparator<Cost> BY_TOTAL_NANOS = new Comparator<Cost>() {
+		@Override
+		public int compare(Cost o1, Cost o2) {
+			return o1.totalNanos < o2.totalNanos ? -1 : (o1.totalNanos == o2.totalNanos ? 0 : 1);
+		}
+	};
+
+	private final int topN;
+	private Map<MetricName, Cost> costs = new HashMap<MetricName, Cost>();
+	private volatile List<Cost> top = Collections.emptyList();
+
+	public MetricProfiler(int topN) {
+		this.topN = topN;
+	}
+
+	public void record(MetricName name, long nanos, long bytes) {
+		Cost cost = costs.get(name);
+		if (cost == null) {
+			cost = new Cost(name);
+			costs.put(name, cost);
+		}
+		cost.totalNanos += nanos;
+		cost.totalBytes += bytes;
+		cost.samples++;
+		cost.lastNanos = nanos;
+		if (nanos > cost.maxNanos) {
+			cost.maxNanos = nanos;
+		}
+	}
+
+	/**
+	 * Add to the last sample of name, for a metric which is processed in two steps within a tick (e.g. top K).
+	 */
+	public void extend(MetricName name, long nanos, long bytes) {
+		Cost cost = costs.get(name);
+		if (cost == null) {
+			record(name, nanos, bytes);
+			return;
+		}
+		cost.totalNanos += nanos;
+		cost.totalBytes += bytes;
+		cost.lastNanos += nanos;
+		if (cost.lastNanos > cost.maxNanos) {
+			cost.maxNanos = cost.lastNanos;
+		}
+	}
+
+	/**
+	 * Select the top N of the current window with a bounded min-heap (O(n log N)), and start a new window.
+	 *
+	 * @return the top N, most expensive first
+	 */
+	public List<Cost> rotate() {
+		PriorityQueue<Cost> heap = new PriorityQueue<Cost>(topN + 1, BY_TOTAL_NANOS);
+		for (Cost cost : costs.values()) {
+			if (heap.size() < topN) {
+				heap.add(cost);
+			} else if (BY_TOTAL_NANOS.compare(cost, heap.peek()) > 0) {
+				heap.poll();
+				heap.add(cost);
+			}
+		}
+
+		List<Cost> result = new ArrayList<Cost>(heap);
+		Collections.sort(result, Collections.reverseOrder(BY_TOTAL_NANOS));
+		top = Collections.unmodifiableList(result);
+		costs = new HashMap<MetricName, Cost>(costs.size() * 4 / 3 + 1);
+		return top;
+	}
+
+	/**
+	 * @return the top N of the last finished window
+	 */
+	public List<Cost> getTop() {
+		return top;
+	}
+}
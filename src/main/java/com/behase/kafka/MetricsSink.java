@@ -0,0 +1,19 @@
+package com.behase.kafka;
+
+/**
+ * Destination of the serialized ticks, in addition to the primary Elasticsearch nodes.
+ * <p>
+ * {@link #write(byte[], String)} is called on the tick thread. An implementation which may block (network, disk)
+ * should hand the work over to its own thread, see {@link AsyncSink}.
+ */
+public interface MetricsSink {
+	String getName();
+
+	/**
+	 * @param payload bulk NDJSON (action and document lines) of one tick. Shared by all sinks, must not be modified
+	 * @param indexSuffix period part of the index name of the tick, e.g. "2016.01.01"
+	 */
+	void write(byte[] payload, String indexSuffix);
+
+	void close();
+}
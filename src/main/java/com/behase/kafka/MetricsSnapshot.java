@@ -0,0 +1,170 @@
+package com.behase.kafka;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Immutable serialized documents of one tick, one JSON document per line (NDJSON).
+ * <p>
+ * The text exposition format ("name{label="value"} value timestamp" per line) is derived from the NDJSON
+ * once, on the first read, and cached. Readers are given the cached bytes as is, never a copy.
+ */
+public class MetricsSnapshot {
+	public static final MetricsSnapshot EMPTY = new MetricsSnapshot(0, new byte[0]);
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+	private final long epochMillis;
+	private final byte[] ndjson;
+	private volatile byte[] text;
+
+	/**
+	 * @param ndjson owned by the snapshot from now on, must not be modified
+	 */
+	public MetricsSnapshot(long epochMillis, byte[] ndjson) {
+		this.epochMillis = epochMillis;
+		this.ndjson = ndjson;
+	}
+
+	public long getEpochMillis() {
+		return epochMillis;
+	}
+
+	public int getNdjsonLength() {
+		return ndjson.length;
+	}
+
+	public void writeNdjson(OutputStream os) throws IOException {
+		os.write(ndjson);
+	}
+
+	public int getTextLength() throws IOException {
+		return text().length;
+	}
+
+	public void writeText(OutputStream os) throws IOException {
+		os.write(text());
+	}
+
+	byte[] text() throws IOException {
+		byte[] result = text;
+		if (result == null) {
+			synchronized (this) {
+				result = text;
+				if (result == null) {
+					result = toText(ndjson, epochMillis).getBytes(UTF_8);
+					text = result;
+				}
+			}
+		}
+		return result;
+	}
+
+	static String toText(byte[] ndjson, long epochMillis) throws IOException {
+		StringBuilder sb = new StringBuilder(ndjson.length);
+		JsonParser parser = JSON_FACTORY.createParser(ndjson);
+		try {
+			while (parser.nextToken() == JsonToken.START_OBJECT) {
+				appendDocument(sb, parser, epochMillis);
+			}
+		} finally {
+			parser.close();
+		}
+		return sb.toString();
+	}
+
+	private static void appendDocument(StringBuilder sb, JsonParser parser, long epochMillis) throws IOException {
+		StringBuilder prefix = new StringBuilder();
+		StringBuilder labels = new StringBuilder();
+		List<String> fields = new ArrayList<String>();
+		List<String> values = new ArrayList<String>();
+
+		JsonToken token;
+		while ((token = parser.nextToken()) == JsonToken.FIELD_NAME) {
+			String field = parser.getCurrentName();
+			token = parser.nextToken();
+			if (token == JsonToken.START_OBJECT) {
+				if ("@tags".equals(field)) {
+					while (parser.nextToken() == JsonToken.FIELD_NAME) {
+						String tag = parser.getCurrentName();
+						parser.nextToken();
+						appendLabel(labels, tag, parser.getText());
+					}
+				} else {
+					parser.skipChildren();
+				}
+			} else if (token == JsonToken.START_ARRAY) {
+				parser.skipChildren();
+			} else if (token == JsonToken.VALUE_STRING) {
+				if ("@group".equals(field) || "@type".equals(field) || "@name".equals(field)) {
+					if (prefix.length() > 0) {
+						prefix.append('_');
+					}
+					prefix.append(parser.getText());
+				} else if ("@scope".equals(field) || "hostname".equals(field)) {
+					appendLabel(labels, field, parser.getText());
+				}
+			} else if (token == JsonToken.VALUE_NUMBER_INT || token == JsonToken.VALUE_NUMBER_FLOAT) {
+				fields.add(field);
+				values.add(parser.getText());
+			} else if (token == JsonToken.VALUE_TRUE || token == JsonToken.VALUE_FALSE) {
+				fields.add(field);
+				values.add(token == JsonToken.VALUE_TRUE ? "1" : "0");
+			}
+		}
+
+		String name = sanitize(prefix);
+		for (int i = 0; i < fields.size(); i++) {
+			sb.append(name).append('_').append(sanitize(fields.get(i)));
+			if (labels.length() > 0) {
+				sb.append('{').append(labels).append('}');
+			}
+			sb.append(' ').append(values.get(i)).append(' ').append(epochMillis).append('\n');
+		}
+	}
+
+	private static void appendLabel(StringBuilder labels, String key, String value) {
+		if (labels.length() > 0) {
+			labels.append(',');
+		}
+		labels.append(sanitize(key)).append("=\"");
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '\\' || c == '"') {
+				labels.append('\\').append(c);
+			} else if (c == '\n') {
+				labels.append("\\n");
+			} else {
+				labels.append(c);
+			}
+		}
+		labels.append('"');
+	}
+
+	/**
+	 * @return str with the characters other than [a-zA-Z0-9_] replaced by '_', not starting with a digit
+	 */
+	static String sanitize(CharSequence str) {
+		StringBuilder sb = new StringBuilder(str.length() + 1);
+		for (int i = 0; i < str.length(); i++) {
+			char c = str.charAt(i);
+			if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_' || (c >= '0' && c <= '9')) {
+				sb.append(c);
+			} else {
+				sb.append('_');
+			}
+		}
+		if (sb.length() == 0 || (sb.charAt(0) >= '0' && sb.charAt(0) <= '9')) {
+			sb.insert(0, '_');
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,247 @@
+package com.behase.kafka;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes each tick as is (bulk NDJSON, replayable with /{index}/_bulk) to rotated segment files, for a local shipper.
+ * <p>
+ * A segment is named "{filePrefix}{indexSuffix}-{epochMillis of its first tick}.ndjson", ".ndjson.gz" if compressed.
+ * A new segment starts when the index period changes or the segment reaches rollBytes, and only the newest maxSegments
+ * are kept. A compressed segment is written as ".inprogress" and renamed when it is rolled, so that only complete
+ * files match "*.gz". Each tick is written by one large write of the shared payload (a gzip member per tick
+ * if compressed), on the own thread of the sink.
+ * <p>
+ * Reporters of one JVM writing to the same dir and filePrefix should {@link #acquire} the sink, since separate sinks
+ * would interleave their segments and delete each other's.
+ */
+public class NdjsonFileSink extends AsyncSink {
+	private static final Logger LOG = LoggerFactory.getLogger(NdjsonFileSink.class);
+
+	public static final String IN_PROGRESS_SUFFIX = ".inprogress";
+	public static final long CLOSE_TIMEOUT_MILLIS = 5000;
+
+	// acquired sinks by dir and prefix
+	private static final Map<String, NdjsonFileSink> ACQUIRED = new HashMap<String, NdjsonFileSink>();
+
+	private final File dir;
+	private final String filePrefix;
+	private final boolean gzip;
+	private final long rollBytes;
+	private final int maxSegments;
+	private int bufferBytes = 1 << 16;
+	// key in ACQUIRED and number of holders, guarded by ACQUIRED
+	private String acquiredKey;
+	private int holders;
+
+	// accessed by the sink thread only
+	private FileChannel channel;
+	private File segment;
+	private String segmentSuffix;
+
+	public NdjsonFileSink(String name, File dir, String filePrefix, boolean gzip, long rollBytes, int maxSegments) {
+		super(name);
+		this.dir = dir;
+		this.filePrefix = filePrefix;
+		this.gzip = gzip;
+		this.rollBytes = rollBytes;
+		this.maxSegments = maxSegments;
+	}
+
+	/**
+	 * The sink of this JVM writing to dir/filePrefix, created with these settings if there is none yet.
+	 * It is closed when all holders have closed it.
+	 */
+	public static NdjsonFileSink acquire(String name, File dir, String filePrefix, boolean gzip, long rollBytes,
+			int maxSegments) {
+		String key = new File(dir, filePrefix).getAbsolutePath();
+		synchronized (ACQUIRED) {
+			NdjsonFileSink sink = ACQUIRED.get(key);
+			if (sink == null) {
+				sink = new NdjsonFileSink(name, dir, filePrefix, gzip, rollBytes, maxSegments);
+				sink.acquiredKey = key;
+				ACQUIRED.put(key, sink);
+			} else if (sink.gzip != gzip || sink.rollBytes != rollBytes || sink.maxSegments != maxSegments) {
+				LOG.warn("Sink '{}' is already open with other settings, which are kept.", key);
+			}
+			sink.holders++;
+			return sink;
+		}
+	}
+
+	/**
+	 * Size of the deflater output buffer, i.e. of each write to the file when compressed.
+	 */
+	public void setBufferBytes(int bufferBytes) {
+		this.bufferBytes = bufferBytes;
+	}
+
+	@Override
+	public void write(final byte[] payload, final String indexSuffix) {
+		final long epochMillis = System.currentTimeMillis();
+		submit(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					append(payload, indexSuffix, epochMillis);
+				} catch (IOException e) {
+					LOG.warn("Fail! Writing metrics to '{}'.", segment, e);
+					closeSegment();
+				}
+			}
+		});
+	}
+
+	protected void append(byte[] payload, String indexSuffix, long epochMillis) throws IOException {
+		if (channel != null && (!indexSuffix.equals(segmentSuffix) || channel.position() >= rollBytes)) {
+			closeSegment();
+		}
+		if (channel == null) {
+			openSegment(indexSuffix, epochMillis);
+		}
+
+		if (gzip) {
+			// a complete gzip member per tick; concatenated members are a valid gzip file
+			GZIPOutputStream os = new GZIPOutputStream(new NonClosingOutputStream(Channels.newOutputStream(channel)),
+					bufferBytes);
+			os.write(payload);
+			// finishes the member and ends the Deflater (native memory), the channel stays open
+			os.close();
+		} else {
+			ByteBuffer buffer = ByteBuffer.wrap(payload);
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+		}
+	}
+
+	protected void openSegment(String indexSuffix, long epochMillis) throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Cannot create directory " + dir);
+		}
+		if (gzip && segment == null) {
+			completeAbandonedSegments();
+		}
+		segment = new File(dir, filePrefix + indexSuffix + "-" + epochMillis + (gzip ? ".ndjson.gz" : ".ndjson"));
+		segmentSuffix = indexSuffix;
+		channel = new FileOutputStream(gzip ? new File(segment.getPath() + IN_PROGRESS_SUFFIX) : segment, true)
+				.getChannel();
+		deleteOldSegments();
+	}
+
+	protected void closeSegment() {
+		if (channel == null) {
+			return;
+		}
+		try {
+			channel.close();
+		} catch (IOException e) {
+			LOG.warn("Fail! Closing '{}'.", segment, e);
+		}
+		if (gzip && !new File(segment.getPath() + IN_PROGRESS_SUFFIX).renameTo(segment)) {
+			LOG.warn("Fail! Renaming '{}'.", segment);
+		}
+		channel = null;
+	}
+
+	/**
+	 * Rename the segments left in progress by a previous process. Their last member may be truncated.
+	 */
+	protected void completeAbandonedSegments() {
+		String[] names = dir.list(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.startsWith(filePrefix) && name.endsWith(".ndjson.gz" + IN_PROGRESS_SUFFIX);
+			}
+		});
+		if (names == null) {
+			return;
+		}
+		for (String name : names) {
+			File complete = new File(dir, name.substring(0, name.length() - IN_PROGRESS_SUFFIX.length()));
+			if (!new File(dir, name).renameTo(complete)) {
+				LOG.warn("Fail! Renaming '{}'.", name);
+			}
+		}
+	}
+
+	/**
+	 * Keep the newest maxSegments segments (including the current one). Names sort by period, then by time.
+	 */
+	protected void deleteOldSegments() {
+		String[] names = dir.list(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.startsWith(filePrefix) && (name.endsWith(".ndjson") || name.endsWith(".ndjson.gz"));
+			}
+		});
+		// the current segment is still .inprogress if compressed
+		final int keep = gzip ? maxSegments - 1 : maxSegments;
+		if (maxSegments <= 0 || names == null || names.length <= keep) {
+			return;
+		}
+		Arrays.sort(names);
+		for (int i = 0; i < names.length - keep; i++) {
+			if (!new File(dir, names[i]).delete()) {
+				LOG.warn("Fail! Deleting old segment '{}'.", names[i]);
+			}
+		}
+	}
+
+	/**
+	 * Close the current segment after the pending ticks are written, and stop the thread.
+	 * An acquired sink is closed by its last holder only.
+	 */
+	@Override
+	public void close() {
+		synchronized (ACQUIRED) {
+			if (acquiredKey != null) {
+				if (--holders > 0) {
+					return;
+				}
+				ACQUIRED.remove(acquiredKey);
+			}
+		}
+		submit(new Runnable() {
+			@Override
+			public void run() {
+				closeSegment();
+			}
+		});
+		closeGracefully(CLOSE_TIMEOUT_MILLIS);
+	}
+
+	/**
+	 * Keeps the channel open when the GZIPOutputStream of a tick is closed.
+	 */
+	private static class NonClosingOutputStream extends OutputStream {
+		private final OutputStream os;
+
+		NonClosingOutputStream(OutputStream os) {
+			this.os = os;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			os.write(b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			os.write(b, off, len);
+		}
+	}
+}
@@ -0,0 +1,120 @@
+package com.behase.kafka;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Embedded HTTP endpoint serving the documents of the last tick, for scrapers and on-box debugging.
+ * <ul>
+ * <li>GET /metrics : text exposition format</li>
+ * <li>GET /metrics.ndjson : one JSON document per line</li>
+ * </ul>
+ * Requests are served from the published {@link MetricsSnapshot}, they never touch the MetricsRegistry.
+ */
+public class SnapshotServer {
+	private static final Logger LOG = LoggerFactory.getLogger(SnapshotServer.class);
+
+	public static final String TEXT_CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+	public static final String NDJSON_CONTENT_TYPE = "application/x-ndjson; charset=utf-8";
+
+	private final String host;
+	private final HttpServer server;
+	private final ExecutorService executor;
+	private volatile MetricsSnapshot snapshot = MetricsSnapshot.EMPTY;
+
+	public SnapshotServer(String host, int port) throws IOException {
+		this.host = host;
+		server = HttpServer.create(new InetSocketAddress(host, port), 0);
+		executor = Executors.newFixedThreadPool(2, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "elasticsearch-reporter-http");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		server.setExecutor(executor);
+		server.createContext("/metrics", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				serve(exchange, false);
+			}
+		});
+		server.createContext("/metrics.ndjson", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				serve(exchange, true);
+			}
+		});
+	}
+
+	public void start() {
+		server.start();
+		LOG.info("Serving metrics snapshots at http://{}:{}/metrics", host, server.getAddress().getPort());
+	}
+
+	public void stop() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	public InetSocketAddress getAddress() {
+		return server.getAddress();
+	}
+
+	/**
+	 * Replace the served snapshot. Readers in progress keep the previous one.
+	 */
+	public void publish(MetricsSnapshot snapshot) {
+		this.snapshot = snapshot;
+	}
+
+	public MetricsSnapshot getSnapshot() {
+		return snapshot;
+	}
+
+	protected void serve(HttpExchange exchange, boolean ndjson) throws IOException {
+		try {
+			final String method = exchange.getRequestMethod();
+			if (!"GET".equals(method) && !"HEAD".equals(method)) {
+				exchange.sendResponseHeaders(405, -1);
+				return;
+			}
+			if (!exchange.getRequestURI().getPath().equals(exchange.getHttpContext().getPath())) {
+				exchange.sendResponseHeaders(404, -1);
+				return;
+			}
+
+			final MetricsSnapshot current = snapshot;
+			final int length = ndjson ? current.getNdjsonLength() : current.getTextLength();
+			exchange.getResponseHeaders().set("Content-Type", ndjson ? NDJSON_CONTENT_TYPE : TEXT_CONTENT_TYPE);
+			if ("HEAD".equals(method) || length == 0) {
+				exchange.sendResponseHeaders(200, -1);
+				return;
+			}
+
+			exchange.sendResponseHeaders(200, length);
+			OutputStream os = exchange.getResponseBody();
+			if (ndjson) {
+				current.writeNdjson(os);
+			} else {
+				current.writeText(os);
+			}
+			os.flush();
+		} catch (IOException e) {
+			LOG.debug("Fail! Serving metrics snapshot.", e);
+		} finally {
+			exchange.close();
+		}
+	}
+}
@@ -0,0 +1,268 @@
+package com.behase.kafka;
+
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.Histogram;
+import com.yammer.metrics.core.Metered;
+import com.yammer.metrics.core.Metric;
+import com.yammer.metrics.core.MetricName;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Selects the top K scoped instances (e.g. partitions) of configured metric families per tick.
+ * <p>
+ * A family is "group:type:name" ("*" matches any name) and its instances are the metrics with a scope.
+ * Instances are ranked by value (gauge value, or count) or by its change since the previous tick,
+ * using a bounded min-heap (O(n log K)). The rest is aggregated as "others".
+ * Gauges are evaluated by the caller (e.g. through the GaugeEvaluator), which may keep the result with the
+ * candidate as a sample, so that the top K are not evaluated again when they are reported.
+ * Not thread-safe, it is used by the tick thread only.
+ */
+public class TopKSelector {
+	public enum RankBy {
+		VALUE, RATE
+	}
+
+	public static class Candidate {
+		final MetricIndex.Entry entry;
+		final double score;
+		final Object sample;
+
+		Candidate(MetricIndex.Entry entry, double score, Object sample) {
+			this.entry = entry;
+			this.score = score;
+			this.sample = sample;
+		}
+
+		public MetricIndex.Entry getEntry() {
+			return entry;
+		}
+
+		public double getScore() {
+			return score;
+		}
+
+		/**
+		 * @return what the caller offered with the instance, e.g. the evaluated gauge
+		 */
+		public Object getSample() {
+			return sample;
+		}
+	}
+
+	public class Family {
+		final MetricName name;
+		final PriorityQueue<Candidate> heap = new PriorityQueue<Candidate>(k + 1, BY_SCORE);
+		final List<MetricIndex.Entry> offered = new ArrayList<MetricIndex.Entry>();
+		int count = 0;
+		double sum = 0;
+
+		Family(MetricName name) {
+			this.name = name;
+		}
+
+		void offer(MetricIndex.Entry entry, double score, Object sample) {
+			offered.add(entry);
+			count++;
+			sum += score;
+			if (heap.size() < k) {
+				heap.add(new Candidate(entry, score, sample));
+			} else if (score > heap.peek().score) {
+				heap.poll();
+				heap.add(new Candidate(entry, score, sample));
+			}
+		}
+
+		/**
+		 * @return name of the family (without scope)
+		 */
+		public MetricName getName() {
+			return name;
+		}
+
+		/**
+		 * @return the top K of this tick, highest first
+		 */
+		public List<Candidate> top() {
+			List<Candidate> top = new ArrayList<Candidate>(heap);
+			Collections.sort(top, Collections.reverseOrder(BY_SCORE));
+			return top;
+		}
+
+		/**
+		 * @return the instances offered this tick which are not in the top K
+		 */
+		public List<MetricIndex.Entry> others() {
+			Map<MetricIndex.Entry, Boolean> top = new IdentityHashMap<MetricIndex.Entry, Boolean>();
+			for (Candidate candidate : heap) {
+				top.put(candidate.entry, Boolean.TRUE);
+			}
+			List<MetricIndex.Entry> others = new ArrayList<MetricIndex.Entry>(offered.size() - top.size());
+			for (MetricIndex.Entry entry : offered) {
+				if (!top.containsKey(entry)) {
+					others.add(entry);
+				}
+			}
+			return others;
+		}
+
+		public int getOthersCount() {
+			return count - heap.size();
+		}
+
+		public double getOthersSum() {
+			double topSum = 0;
+			for (Candidate candidate : heap) {
+				topSum += candidate.score;
+			}
+			return sum - topSum;
+		}
+
+		void reset() {
+			heap.clear();
+			offered.clear();
+			count = 0;
+			sum = 0;
+		}
+	}
+
+	private static final Comparator<Candidate> BY_SCORE = new Comparator<Candidate>() {
+		@Override
+		public int compare(Candidate o1, Candidate o2) {
+			return Double.compare(o1.score, o2.score);
+		}
+	};
+
+	private final int k;
+	private final RankBy rankBy;
+	private final Map<String, Boolean> patterns = new HashMap<String, Boolean>();
+	// family of each metric, null value if it does not belong to any family
+	private final Map<MetricName, Family> membership = new HashMap<MetricName, Family>();
+	private final Map<String, Family> families = new LinkedHashMap<String, Family>();
+	private final DeltaTracker previous = new DeltaTracker();
+	private int ticks = 0;
+
+	/**
+	 * @param familyPatterns "group:type:name" patterns, comma separated
+	 */
+	public TopKSelector(String familyPatterns, int k, RankBy rankBy) {
+		this.k = k;
+		this.rankBy = rankBy;
+		for (String pattern : familyPatterns.split(",")) {
+			if (pattern.trim().length() > 0) {
+				patterns.put(pattern.trim(), Boolean.TRUE);
+			}
+		}
+	}
+
+	public void beginTick() {
+		for (Family family : families.values()) {
+			family.reset();
+		}
+		previous.nextGeneration();
+		if (++ticks % ElasticsearchReporter.DELTA_MAX_AGE == 0) {
+			previous.sweep(ElasticsearchReporter.DELTA_MAX_AGE);
+			membership.clear();
+		}
+	}
+
+	/**
+	 * @return the family of the metric, null if it does not belong to any
+	 */
+	public Family familyOf(MetricName name) {
+		if (!name.hasScope()) {
+			return null;
+		}
+		Family family = membership.get(name);
+		if (family == null && !membership.containsKey(name)) {
+			family = findFamily(name);
+			membership.put(name, family);
+		}
+		return family;
+	}
+
+	/**
+	 * Hold an instance of the family for ranking.
+	 *
+	 * @param value gauge value or count, see {@link #value(Object)}
+	 * @param sample kept with the candidate
+	 */
+	public void offer(Family family, MetricIndex.Entry entry, double value, Object sample) {
+		if (Double.isNaN(value)) {
+			value = 0;
+		}
+		if (rankBy == RankBy.RATE) {
+			// kept as the bits of the double, so that fractional gauge values are not rounded (+ 0.0 turns -0.0,
+			// whose bits are NO_PREVIOUS, into 0.0)
+			long last = previous.get(entry.name);
+			previous.delta(entry.name, Double.doubleToLongBits(value + 0.0));
+			value = last == DeltaTracker.NO_PREVIOUS ? 0 : value - Double.longBitsToDouble(last);
+		}
+		family.offer(entry, value, sample);
+	}
+
+	/**
+	 * The metric was reset to 0 after it was offered (e.g. reported with enableReset), so that its next
+	 * change is not taken as a decrease.
+	 */
+	public void reset(MetricName name) {
+		if (rankBy == RankBy.RATE && previous.get(name) != DeltaTracker.NO_PREVIOUS) {
+			previous.delta(name, Double.doubleToLongBits(0.0));
+		}
+	}
+
+	public Collection<Family> families() {
+		return families.values();
+	}
+
+	private Family findFamily(MetricName name) {
+		String key = name.getGroup() + ":" + name.getType() + ":" + name.getName();
+		if (!patterns.containsKey(key)) {
+			String wildcard = name.getGroup() + ":" + name.getType() + ":*";
+			if (!patterns.containsKey(wildcard)) {
+				return null;
+			}
+		}
+
+		Family family = families.get(key);
+		if (family == null) {
+			family = new Family(new MetricName(name.getGroup(), name.getType(), name.getName()));
+			families.put(key, family);
+		}
+		return family;
+	}
+
+	/**
+	 * @return value of the metric to rank it. A gauge is evaluated here, see {@link #value(Object)} to rank a gauge
+	 * value evaluated by the caller
+	 */
+	public static double value(Metric metric) {
+		if (metric instanceof Gauge) {
+			return value(((Gauge<?>)metric).value());
+		} else if (metric instanceof Counter) {
+			return ((Counter)metric).count();
+		} else if (metric instanceof Metered) {
+			return ((Metered)metric).count();
+		} else if (metric instanceof Histogram) {
+			return ((Histogram)metric).count();
+		}
+		return Double.NaN;
+	}
+
+	/**
+	 * @return gauge value as a score, NaN if it is not a number
+	 */
+	public static double value(Object gaugeValue) {
+		return gaugeValue instanceof Number ? ((Number)gaugeValue).doubleValue() : Double.NaN;
+	}
+}
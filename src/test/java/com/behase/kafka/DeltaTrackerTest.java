@@ -0,0 +1,50 @@
+package com.behase.kafka;
+
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class DeltaTrackerTest {
+	@Test
+	public void delta() {
+		DeltaTracker tracker = new DeltaTracker(4);
+		for (int i = 0; i < 1000; i++) {
+			assertThat(tracker.delta("key" + i, i), is(DeltaTracker.NO_PREVIOUS));
+		}
+		for (int i = 0; i < 1000; i++) {
+			assertThat(tracker.delta("key" + i, i * 3), is((long)i * 2));
+		}
+		assertThat(tracker.size(), is(1000));
+		assertThat(tracker.get("key10"), is(30L));
+		assertThat(tracker.get("none"), is(DeltaTracker.NO_PREVIOUS));
+	}
+
+	@Test
+	public void delta_interval() {
+		DeltaTracker tracker = new DeltaTracker();
+		assertThat(tracker.delta("a", 10, 1000), is(DeltaTracker.NO_PREVIOUS));
+		assertThat(tracker.getLastIntervalMillis(), is(0L));
+		assertThat(tracker.delta("b", 10, 2000), is(DeltaTracker.NO_PREVIOUS));
+
+		// the interval is per key
+		assertThat(tracker.delta("a", 30, 11000), is(20L));
+		assertThat(tracker.getLastIntervalMillis(), is(10000L));
+		assertThat(tracker.delta("b", 40, 52000), is(30L));
+		assertThat(tracker.getLastIntervalMillis(), is(50000L));
+	}
+
+	@Test
+	public void sweep() {
+		DeltaTracker tracker = new DeltaTracker();
+		tracker.delta("old", 1);
+		tracker.nextGeneration();
+		tracker.nextGeneration();
+		tracker.delta("new", 1);
+
+		tracker.sweep(1);
+		assertThat(tracker.size(), is(1));
+		assertThat(tracker.get("old"), is(DeltaTracker.NO_PREVIOUS));
+		assertThat(tracker.get("new"), is(1L));
+	}
+}
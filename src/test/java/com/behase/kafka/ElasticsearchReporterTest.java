@@ -37,15 +37,19 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.hamcrest.Matchers.containsString;
 import static org.hamcrest.Matchers.hasItems;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
 import static org.hamcrest.Matchers.nullValue;
 import static org.junit.Assert.assertThat;
 import static org.mockito.Mockito.doNothing;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 
 public class ElasticsearchReporterTest {
 	private static final Logger LOG = LoggerFactory.getLogger(ElasticsearchReporterTest.class);
@@ -145,6 +149,23 @@ public class ElasticsearchReporterTest {
 		assertThat(doc2.read("$.count", Long.class), is(3l));
 	}
 
+	@Test
+	public void processMeter_delta() throws Exception {
+		Meter mockMeter = mock(Meter.class);
+		// the meter is marked while it is reported
+		doReturn(3l).doReturn(8l).doReturn(10l).doReturn(12l).when(mockMeter).count();
+		reporter.setEnableDelta(true);
+
+		reporter.processMeter(new MetricName("g", "t", "n"), mockMeter, new DateTime(2016, 1, 1, 0, 0, 0));
+		reporter.processMeter(new MetricName("g", "t", "n"), mockMeter, new DateTime(2016, 1, 1, 0, 0, 10));
+		String[] buf = reporter.buffer.toString().split("\n");
+
+		DocumentContext doc = JsonPath.using(jsonConf).parse(buf[3]);
+		assertThat(doc.read("$.count", Long.class), is(8l));
+		assertThat(doc.read("$.delta", Long.class), is(5l));
+		verify(mockMeter, times(2)).count();
+	}
+
 	@Test
 	public void processCounter() throws Exception {
 		Counter mockCounter = mock(Counter.class);
@@ -162,6 +183,123 @@ public class ElasticsearchReporterTest {
 		assertThat(doc2.read("$.count", Integer.class), is(1));
 	}
 
+	@Test
+	public void processCounter_delta() throws Exception {
+		Counter counter = metrics.newCounter(new MetricName("g", "t", "n"));
+		counter.inc(5);
+		reporter.setEnableDelta(true);
+
+		reporter.processCounter(new MetricName("g", "t", "n"), counter, new DateTime(2016, 1, 1, 0, 0, 0));
+		counter.inc(20);
+		reporter.processCounter(new MetricName("g", "t", "n"), counter, new DateTime(2016, 1, 1, 0, 0, 10));
+		String[] buf = reporter.buffer.toString().split("\n");
+
+		DocumentContext doc1 = JsonPath.using(jsonConf).parse(buf[1]);
+		assertThat(doc1.read("$.count", Integer.class), is(5));
+		assertThat(doc1.read("$.delta"), is(nullValue()));
+
+		DocumentContext doc2 = JsonPath.using(jsonConf).parse(buf[3]);
+		assertThat(doc2.read("$.count", Integer.class), is(25));
+		assertThat(doc2.read("$.delta", Integer.class), is(20));
+		assertThat(doc2.read("$.rate", Double.class), is(2.0));
+		assertThat(counter.count(), is(25L));
+	}
+
+	@Test
+	public void processCounter_delta_skippedTicks() throws Exception {
+		Counter counter = metrics.newCounter(new MetricName("g", "t", "n"));
+		Counter other = metrics.newCounter(new MetricName("g", "t", "other"));
+		reporter.setEnableDelta(true);
+
+		reporter.processCounter(new MetricName("g", "t", "n"), counter, new DateTime(2016, 1, 1, 0, 0, 0));
+		for (int i = 1; i <= 4; i++) {
+			reporter.processCounter(new MetricName("g", "t", "other"), other, new DateTime(2016, 1, 1, 0, 0, i * 10));
+		}
+		counter.inc(1000);
+		reporter.buffer = new StringWriter();
+		reporter.processCounter(new MetricName("g", "t", "n"), counter, new DateTime(2016, 1, 1, 0, 0, 50));
+		String[] buf = reporter.buffer.toString().split("\n");
+
+		DocumentContext doc = JsonPath.using(jsonConf).parse(buf[1]);
+		assertThat(doc.read("$.delta", Integer.class), is(1000));
+		assertThat(doc.read("$.rate", Double.class), is(20.0));
+	}
+
+	@Test
+	public void processCounter_deterministicIds() throws Exception {
+		Counter counter = metrics.newCounter(new MetricName("g", "t", "n"));
+		reporter.setDeterministicIds(true);
+
+		DateTime epoch = new DateTime(2016, 1, 1, 0, 0, 0);
+		reporter.processCounter(new MetricName("g", "t", "n"), counter, epoch);
+		reporter.processCounter(new MetricName("g", "t", "n"), counter, epoch);
+		reporter.processCounter(new MetricName("g", "t", "n", "s"), counter, epoch);
+		reporter.processCounter(new MetricName("g", "t", "n"), counter, epoch.plusSeconds(10));
+		String[] buf = reporter.buffer.toString().split("\n");
+
+		DocumentContext action1 = JsonPath.using(jsonConf).parse(buf[0]);
+		assertThat(action1.read("$.create._type", String.class), is("counter"));
+		String id = action1.read("$.create._id", String.class);
+		assertThat(id.length(), is(11));
+
+		assertThat(JsonPath.using(jsonConf).parse(buf[2]).read("$.create._id", String.class), is(id));
+		assertThat(JsonPath.using(jsonConf).parse(buf[4]).read("$.create._id", String.class), is(not(id)));
+		assertThat(JsonPath.using(jsonConf).parse(buf[6]).read("$.create._id", String.class), is(not(id)));
+	}
+
+	@Test
+	public void applyBudget_deterministicIds() throws Exception {
+		Counter counter = metrics.newCounter(new MetricName("g", "t", "n"));
+		reporter.setDeterministicIds(true);
+		reporter.setLoadShedder(new LoadShedder(0, 1, null, null));
+
+		DateTime epoch = new DateTime(2016, 1, 1, 0, 0, 0);
+		reporter.processCounter(new MetricName("g", "t", "n"), counter, epoch);
+		reporter.processCounter(new MetricName("g", "t", "n", "s"), counter, epoch);
+		reporter.applyBudget(epoch);
+		String[] buf = reporter.buffer.toString().split("\n");
+		assertThat(buf.length, is(4));
+
+		DocumentContext action1 = JsonPath.using(jsonConf).parse(buf[0]);
+		assertThat(action1.read("$.create._type", String.class), is("counter"));
+		DocumentContext action2 = JsonPath.using(jsonConf).parse(buf[2]);
+		assertThat(action2.read("$.create._type", String.class), is("shed"));
+		assertThat(action2.read("$.create._id", String.class).length(), is(11));
+		assertThat(action2.read("$.create._id", String.class), is(not(action1.read("$.create._id", String.class))));
+		assertThat(JsonPath.using(jsonConf).parse(buf[3]).read("$['critical.shed_docs']", Long.class), is(1L));
+	}
+
+	@Test
+	public void applyBudget_deferredReset() throws Exception {
+		Counter critical = metrics.newCounter(new MetricName("g", "t", "critical"));
+		Counter later = metrics.newCounter(new MetricName("g", "t", "later"));
+		reporter.setLoadShedder(new LoadShedder(0, 1, "g:t:critical", null));
+		critical.inc(3);
+		later.inc(5);
+
+		reporter.printRegularMetrics(new DateTime(2016, 1, 1, 0, 0, 0));
+		reporter.applyBudget(new DateTime(2016, 1, 1, 0, 0, 0));
+		// only the admitted one is reset, the shed count is kept for a later tick
+		assertThat(critical.count(), is(0L));
+		assertThat(later.count(), is(5L));
+
+		later.inc(2);
+		reporter.setLoadShedder(new LoadShedder(0, 0, null, null));
+		reporter.buffer = new StringWriter();
+		reporter.printRegularMetrics(new DateTime(2016, 1, 1, 0, 0, 10));
+		reporter.applyBudget(new DateTime(2016, 1, 1, 0, 0, 10));
+		String[] buf = reporter.buffer.toString().split("\n");
+		Long laterCount = null;
+		for (int i = 1; i < buf.length; i += 2) {
+			DocumentContext doc = JsonPath.using(jsonConf).parse(buf[i]);
+			if ("later".equals(doc.read("$.@name", String.class))) {
+				laterCount = doc.read("$.count", Long.class);
+			}
+		}
+		assertThat(laterCount, is(7L));
+		assertThat(later.count(), is(0L));
+	}
+
 	@Test
 	public void processHistogram() throws Exception {
 		Histogram mockHistogram = mock(Histogram.class);
@@ -358,6 +496,125 @@ public class ElasticsearchReporterTest {
 		assertThat(reporter.buffer.toString().split("\n").length, is(10));
 	}
 
+	@Test
+	public void printRegularMetrics_topK() {
+		for (int i = 1; i <= 5; i++) {
+			final long size = i;
+			metrics.newGauge(new MetricName("kafka.log", "Log", "Size", "topic.t.partition." + i), new Gauge<Long>() {
+				public Long value() {
+					return size;
+				}
+			});
+		}
+		metrics.newCounter(new MetricName("group", "type", "counter")).inc();
+		reporter.setTopKSelector(new TopKSelector("kafka.log:Log:*", 2, TopKSelector.RankBy.VALUE));
+
+		reporter.printRegularMetrics(DateTime.now());
+		String[] buf = reporter.buffer.toString().split("\n");
+		assertThat(buf.length, is(8));
+
+		DocumentContext doc1 = JsonPath.using(jsonConf).parse(buf[3]);
+		assertThat(doc1.read("$.@scope", String.class), is("topic.t.partition.5"));
+		DocumentContext doc2 = JsonPath.using(jsonConf).parse(buf[5]);
+		assertThat(doc2.read("$.@scope", String.class), is("topic.t.partition.4"));
+
+		assertThat(JsonPath.using(jsonConf).parse(buf[6]).read("$.index._type", String.class), is("topk_others"));
+		DocumentContext others = JsonPath.using(jsonConf).parse(buf[7]);
+		assertThat(others.read("$.@name", String.class), is("Size"));
+		assertThat(others.read("$.others_count", Integer.class), is(3));
+		assertThat(others.read("$.others_sum", Double.class), is(6.0));
+	}
+
+	@Test
+	public void printRegularMetrics_topK_reset() {
+		Counter a = metrics.newCounter(new MetricName("kafka.server", "BrokerTopicMetrics", "Bytes", "topic.a"));
+		Counter b = metrics.newCounter(new MetricName("kafka.server", "BrokerTopicMetrics", "Bytes", "topic.b"));
+		reporter.setTopKSelector(new TopKSelector("kafka.server:BrokerTopicMetrics:*", 1, TopKSelector.RankBy.VALUE));
+
+		a.inc(10);
+		b.inc(5);
+		reporter.printRegularMetrics(new DateTime(2016, 1, 1, 0, 0, 0));
+		// the one which was not reported is cleared too
+		assertThat(a.count(), is(0L));
+		assertThat(b.count(), is(0L));
+
+		// ranked by the counts of this tick
+		a.inc(4);
+		b.inc(1);
+		reporter.buffer = new StringWriter();
+		reporter.printRegularMetrics(new DateTime(2016, 1, 1, 0, 0, 10));
+		String[] buf = reporter.buffer.toString().split("\n");
+		assertThat(JsonPath.using(jsonConf).parse(buf[1]).read("$.@scope", String.class), is("topic.a"));
+		assertThat(JsonPath.using(jsonConf).parse(buf[1]).read("$.count", Long.class), is(4L));
+		assertThat(JsonPath.using(jsonConf).parse(buf[3]).read("$.others_sum", Double.class), is(1.0));
+
+		b.inc(7);
+		reporter.buffer = new StringWriter();
+		reporter.printRegularMetrics(new DateTime(2016, 1, 1, 0, 0, 20));
+		buf = reporter.buffer.toString().split("\n");
+		assertThat(JsonPath.using(jsonConf).parse(buf[1]).read("$.@scope", String.class), is("topic.b"));
+		assertThat(JsonPath.using(jsonConf).parse(buf[3]).read("$.others_sum", Double.class), is(0.0));
+	}
+
+	@Test
+	public void printRegularMetrics_topK_gaugeEvaluator() {
+		final AtomicInteger calls = new AtomicInteger();
+		for (int i = 1; i <= 5; i++) {
+			final long size = i;
+			metrics.newGauge(new MetricName("kafka.log", "Log", "Size", "topic.t.partition." + i), new Gauge<Long>() {
+				public Long value() {
+					calls.incrementAndGet();
+					return size;
+				}
+			});
+		}
+		GaugeEvaluator evaluator = new GaugeEvaluator(1000, 3, 6);
+		MetricProfiler profiler = new MetricProfiler(5);
+		reporter.setGaugeEvaluator(evaluator);
+		reporter.setProfiler(profiler, 1);
+		reporter.setTopKSelector(new TopKSelector("kafka.log:Log:*", 2, TopKSelector.RankBy.VALUE));
+
+		try {
+			reporter.printRegularMetrics(DateTime.now());
+		} finally {
+			evaluator.shutdown();
+		}
+		String[] buf = reporter.buffer.toString().split("\n");
+		assertThat(buf.length, is(6));
+		// evaluated once, through the evaluator
+		assertThat(calls.get(), is(5));
+		DocumentContext doc = JsonPath.using(jsonConf).parse(buf[1]);
+		assertThat(doc.read("$.@scope", String.class), is("topic.t.partition.5"));
+		assertThat(doc.read("$.longValue", Long.class), is(5L));
+		assertThat(doc.read("$.@cost_micros"), is(not(nullValue())));
+
+		// the reported ones include the cost of printing
+		for (MetricProfiler.Cost cost : profiler.rotate()) {
+			boolean reported = cost.getName().getScope().endsWith(".5") || cost.getName().getScope().endsWith(".4");
+			assertThat(cost.getSamples(), is(1));
+			assertThat(cost.getAvgBytes() > 0, is(reported));
+		}
+	}
+
+	@Test
+	public void printProfile() throws Exception {
+		metrics.newCounter(new MetricName("group", "type", "counter")).inc();
+		metrics.newCounter(new MetricName("group", "type", "counter2")).inc();
+		reporter.setProfiler(new MetricProfiler(1), 1);
+
+		reporter.printRegularMetrics(DateTime.now());
+		reporter.buffer = new StringWriter();
+		reporter.printProfile(DateTime.now());
+		String[] buf = reporter.buffer.toString().split("\n");
+
+		assertThat(buf.length, is(2));
+		assertThat(JsonPath.using(jsonConf).parse(buf[0]).read("$.index._type", String.class), is("profile"));
+		DocumentContext doc = JsonPath.using(jsonConf).parse(buf[1]);
+		assertThat(doc.read("$.rank", Integer.class), is(1));
+		assertThat(doc.read("$.samples", Integer.class), is(1));
+		assertThat(doc.read("$.avg_bytes", Integer.class) > 0, is(true));
+	}
+
 	@Test
 	public void printVmMetrics() throws Exception {
 		reporter.printVmMetrics(DateTime.now());
@@ -415,7 +672,7 @@ public class ElasticsearchReporterTest {
 
 	@Test
 	public void addReportBuffer() {
-		reporter.addReportBuffer("type", "{}", DateTime.now());
+		reporter.addReportBuffer("type", "{}", 0, DateTime.now());
 		String[] buf = reporter.buffer.toString().split("\n");
 
 		DocumentContext doc = JsonPath.using(jsonConf).parse(buf[0]);
@@ -438,7 +695,7 @@ public class ElasticsearchReporterTest {
 				true,
 				null
 		);
-		reporter.addReportBuffer("type", "{}", DateTime.now());
+		reporter.addReportBuffer("type", "{}", 0, DateTime.now());
 
 		String[] buf = reporter.buffer.toString().split("\n");
 		DocumentContext doc = JsonPath.using(jsonConf).parse(buf[0]);
@@ -481,6 +738,78 @@ public class ElasticsearchReporterTest {
 		assertThat(doc.read("$.hits.total", Integer.class), is(5));
 	}
 
+	@Test
+	public void addReportBuffer_hourly() {
+		reporter.setIndexGranularity(IndexGranularity.HOURLY);
+		reporter.addReportBuffer("type", "{}", 0, new DateTime(2016, 1, 1, 13, 0, 0));
+		reporter.setIndexGranularity(IndexGranularity.WEEKLY);
+		reporter.addReportBuffer("type", "{}", 0, new DateTime(2016, 1, 6, 0, 0, 0));
+		String[] buf = reporter.buffer.toString().split("\n");
+
+		assertThat(JsonPath.using(jsonConf).parse(buf[0]).read("$.index._index", String.class), is("index-2016.01.01.13"));
+		assertThat(JsonPath.using(jsonConf).parse(buf[2]).read("$.index._index", String.class), is("index-2016.w01"));
+	}
+
+	@Test
+	public void sweepExpiredIndices() throws Exception {
+		StandInElasticsearch es = new StandInElasticsearch();
+		try {
+			es.respond("GET", "/_cat/indices/index-*?h=index",
+					"index-2015.12.24\nindex-2015.12.25 \nindex-2015.12.31\nindex-2016.01.01\nindex-foo\n");
+			reporter = new ElasticsearchReporter(metrics, es.node(), MetricPredicate.ALL, "index-", null, null, true, true, null);
+			reporter.setRetentionMillis(ElasticsearchReporter.parseDurationMillis("7d"));
+
+			reporter.sweepExpiredIndices(DateTime.now());
+
+			// on the thread of the primary
+			List<StandInElasticsearch.Request> requests = es.await(2);
+			assertThat(requests.size(), is(2));
+			assertThat(requests.get(1).method, is("DELETE"));
+			assertThat(requests.get(1).path, is("/index-2015.12.24"));
+		} finally {
+			es.stop();
+		}
+	}
+
+	@Test
+	public void parseDurationMillis() {
+		assertThat(ElasticsearchReporter.parseDurationMillis(null), is(0L));
+		assertThat(ElasticsearchReporter.parseDurationMillis("12h"), is(TimeUnit.HOURS.toMillis(12)));
+		assertThat(ElasticsearchReporter.parseDurationMillis("7"), is(TimeUnit.DAYS.toMillis(7)));
+		assertThat(ElasticsearchReporter.parseDurationMillis("2w"), is(TimeUnit.DAYS.toMillis(14)));
+	}
+
+	@Test
+	public void installIndexTemplate() throws Exception {
+		StandInElasticsearch es = new StandInElasticsearch();
+		try {
+			reporter = new ElasticsearchReporter(metrics, es.node(), MetricPredicate.ALL, "index-", null, "1d", true, true, null);
+			reporter.setTemplateNumberOfShards(2);
+			reporter.setTemplateRefreshInterval("1m");
+
+			assertThat(reporter.installIndexTemplate(), is(true));
+			assertThat(reporter.installIndexTemplate(), is(true));
+
+			List<StandInElasticsearch.Request> requests = es.requests();
+			assertThat(requests.size(), is(2));
+			assertThat(requests.get(0).method, is("PUT"));
+			assertThat(requests.get(0).path, is("/_template/index-template"));
+			assertThat(requests.get(1).body, is(requests.get(0).body));
+
+			DocumentContext doc = JsonPath.using(jsonConf).parse(requests.get(0).body);
+			assertThat(doc.read("$.template", String.class), is("index-*"));
+			assertThat(doc.read("$.settings['index.number_of_shards']", Integer.class), is(2));
+			assertThat(doc.read("$.settings['index.refresh_interval']", String.class), is("1m"));
+			assertThat(doc.read("$.mappings._default_._all.enabled", Boolean.class), is(false));
+			assertThat(doc.read("$.mappings._default_._ttl.enabled", Boolean.class), is(true));
+			assertThat(doc.read("$.mappings._default_.properties.@group.index", String.class), is("not_analyzed"));
+			assertThat(doc.read("$.mappings._default_.properties.count.index", String.class), is("no"));
+			assertThat(doc.read("$.mappings._default_.properties.count.doc_values", Boolean.class), is(true));
+		} finally {
+			es.stop();
+		}
+	}
+
 	@Test
 	public void closeConnection() throws Exception {
 		OutputStream mockOs = mock(OutputStream.class);
@@ -508,6 +837,127 @@ public class ElasticsearchReporterTest {
 		assertThat(ElasticsearchReporter.replaceSpecialChars("- - -"), is("_____"));
 	}
 
+	@Test
+	public void phaseOffsetMillis() {
+		reporter.periodMillis = 10000;
+		reporter.setPhaseKey("1");
+		long offset = reporter.phaseOffsetMillis();
+		assertThat(offset >= 0 && offset < 10000, is(true));
+		assertThat(reporter.phaseOffsetMillis(), is(offset));
+
+		reporter.setPhaseKey("2");
+		assertThat(reporter.phaseOffsetMillis() == offset, is(false));
+	}
+
+	@Test
+	public void phaseOffsetMillis_withoutPhaseKey() {
+		reporter.periodMillis = 10000;
+		reporter.setProvisionalHostname("broker-1");
+		long offset = reporter.phaseOffsetMillis();
+
+		// independent of the hostname resolution
+		reporter.setHostname("broker1.example.com");
+		assertThat(reporter.phaseOffsetMillis(), is(offset));
+		assertThat(reporter.localAddresses, is(ElasticsearchReporter.localAddresses()));
+	}
+
+	@Test
+	public void initialDelayMillis() {
+		reporter.periodMillis = 10000;
+		reporter.setPhaseKey("1");
+		long offset = reporter.phaseOffsetMillis();
+
+		long boundary = 1451606400000L;
+		// the immediate first tick reports the previous interval, which ends at boundary + offset
+		assertThat(reporter.initialDelayMillis(boundary), is(offset == 0 ? 10000 : offset));
+		assertThat(reporter.initialDelayMillis(boundary + offset), is(10000L));
+	}
+
+	@Test
+	public void start_stop() throws Exception {
+		final AtomicInteger ticks = new AtomicInteger();
+		ElasticsearchReporter ticking = new ElasticsearchReporter(metrics, null, MetricPredicate.ALL, "index-", null,
+				null, false, false, "ticking") {
+			@Override
+			public void run() {
+				ticks.incrementAndGet();
+			}
+		};
+
+		for (boolean alignTicks : new boolean[] {false, true}) {
+			ticks.set(0);
+			ticking.setAlignTicks(alignTicks);
+
+			// the first tick runs immediately, the next one in an hour at the earliest
+			ticking.start(1, TimeUnit.HOURS);
+			Thread.sleep(300);
+			assertThat(ticks.get(), is(1));
+
+			ticking.stop();
+			ticking.start(1, TimeUnit.HOURS);
+			Thread.sleep(300);
+			assertThat(ticks.get(), is(2));
+			ticking.stop();
+		}
+		ticking.shutdown();
+	}
+
+	@Test
+	public void hostname() {
+		assertThat(reporter.hostname, is(ElasticsearchReporter.UNKNOWN_HOSTNAME));
+		reporter.setProvisionalHostname("broker-1");
+		assertThat(reporter.hostname, is("broker_1"));
+
+		reporter.resolveHostname();
+		reporter.awaitHostname(10000);
+		assertThat(reporter.hostname, is(ElasticsearchReporter.replaceSpecialChars(ElasticsearchReporter.lookupHostname())));
+
+		reporter.setHostname("broker 1");
+		reporter.setProvisionalHostname("broker-2");
+		assertThat(reporter.hostname, is("broker_1"));
+	}
+
+	@Test
+	public void hostname_configured() {
+		reporter.setHostname("broker1");
+		reporter.resolveHostname();
+		assertThat(reporter.hostnameLookup, nullValue());
+		assertThat(reporter.hostname, is("broker1"));
+	}
+
+	@Test
+	public void tickEpoch_aligned() {
+		reporter.setAlignTicks(true);
+		reporter.periodMillis = 10000;
+		reporter.setPhaseKey("1");
+		long boundary = new DateTime(2016, 1, 1, 0, 0, 0).getMillis();
+		long offset = reporter.phaseOffsetMillis();
+		assertThat(reporter.tickEpoch(boundary + offset + 7), is(new DateTime(boundary)));
+
+		reporter.setAlignTicks(false);
+		assertThat(reporter.tickEpoch(boundary + 7000), is(new DateTime(boundary + 7000)));
+	}
+
+	@Test
+	public void tickEpoch_lateTick() {
+		ElasticsearchReporter late = new ElasticsearchReporter(metrics, null, MetricPredicate.ALL, "index-", null,
+				null, false, false, "late") {
+			@Override
+			protected long phaseOffsetMillis() {
+				return 9900;
+			}
+		};
+		late.setAlignTicks(true);
+		late.periodMillis = 10000;
+		long boundary = new DateTime(2016, 1, 1, 0, 0, 0).getMillis();
+
+		// fires at boundary + 9900, but starts 500ms late, after the next boundary
+		assertThat(late.tickEpoch(boundary + 9900 + 500), is(new DateTime(boundary)));
+		// the next one on time
+		assertThat(late.tickEpoch(boundary + 10000 + 9900), is(new DateTime(boundary + 10000)));
+		assertThat(late.initialDelayMillis(boundary + 10000 + 9900 + 500), is(9500L));
+	}
+
 	@Test
 	public void all() throws InterruptedException {
 		spyReporter.start(1, TimeUnit.SECONDS);
@@ -0,0 +1,162 @@
+package com.behase.kafka;
+
+import com.jayway.jsonpath.Configuration;
+import com.jayway.jsonpath.JsonPath;
+import com.jayway.jsonpath.Option;
+import com.yammer.metrics.core.MetricPredicate;
+import com.yammer.metrics.core.MetricsRegistry;
+import org.joda.time.DateTime;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class ElasticsearchTargetTest {
+	private Configuration jsonConf = Configuration.defaultConfiguration().addOptions(Option.DEFAULT_PATH_LEAF_TO_NULL);
+	private StandInElasticsearch es;
+	private StandInElasticsearch dr;
+
+	@Before
+	public void before() throws Exception {
+		es = new StandInElasticsearch();
+		dr = new StandInElasticsearch();
+	}
+
+	@After
+	public void after() {
+		es.stop();
+		dr.stop();
+	}
+
+	@Test
+	public void bulk_retry() throws Exception {
+		ElasticsearchTarget target = new ElasticsearchTarget("dr", dr.node(), "index-");
+		target.setRetryPolicy(2, 1);
+		target.setIdempotent(true);
+
+		dr.fail(2, 503);
+		assertThat(target.bulk("{}\n".getBytes("UTF-8"), "/_bulk"), is(true));
+		assertThat(dr.requests().size(), is(3));
+
+		dr.fail(3, 503);
+		assertThat(target.bulk("{}\n".getBytes("UTF-8"), "/_bulk"), is(false));
+		assertThat(dr.requests().size(), is(6));
+
+		// not retried
+		dr.fail(1, 400);
+		assertThat(target.bulk("{}\n".getBytes("UTF-8"), "/_bulk"), is(false));
+		assertThat(dr.requests().size(), is(7));
+
+		// rejected as a whole, never indexed
+		dr.fail(2, 429);
+		assertThat(target.bulk("{}\n".getBytes("UTF-8"), "/_bulk"), is(true));
+		assertThat(dr.requests().size(), is(10));
+	}
+
+	@Test
+	public void bulk_retry_notIdempotent() throws Exception {
+		ElasticsearchTarget target = new ElasticsearchTarget("dr", dr.node(), "index-");
+		target.setRetryPolicy(2, 1);
+
+		// may be partly indexed, not sent again
+		dr.fail(1, 503);
+		assertThat(target.bulk("{}\n".getBytes("UTF-8"), "/_bulk"), is(false));
+		assertThat(dr.requests().size(), is(1));
+
+		dr.fail(1, 429);
+		assertThat(target.bulk("{}\n".getBytes("UTF-8"), "/_bulk"), is(true));
+		assertThat(dr.requests().size(), is(3));
+
+		// nothing was sent
+		ElasticsearchTarget unreachable = new ElasticsearchTarget("unreachable", "127.0.0.1:1", "index-");
+		unreachable.setRetryPolicy(1, 1);
+		assertThat(unreachable.bulk("{}\n".getBytes("UTF-8"), "/_bulk"), is(false));
+	}
+
+	@Test
+	public void bulk_retryRejectedItems() throws Exception {
+		ElasticsearchTarget target = new ElasticsearchTarget("dr", dr.node(), "index-");
+		target.setRetryPolicy(2, 1);
+		String a = "{\"index\":{\"_id\":\"a\"}}\n{\"v\":1}\n";
+		String b = "{\"index\":{\"_id\":\"b\"}}\n{\"v\":2}\n";
+		String c = "{\"index\":{\"_id\":\"c\"}}\n{\"v\":3}\n";
+
+		dr.respondNext("{\"took\":1,\"errors\":true,\"items\":["
+				+ "{\"index\":{\"_id\":\"a\",\"status\":201}},"
+				+ "{\"index\":{\"_id\":\"b\",\"status\":429,\"error\":{\"type\":\"es_rejected_execution_exception\"}}},"
+				+ "{\"index\":{\"_id\":\"c\",\"status\":429,\"error\":{\"type\":\"es_rejected_execution_exception\"}}}]}");
+		dr.respondNext("{\"took\":1,\"errors\":true,\"items\":["
+				+ "{\"index\":{\"_id\":\"b\",\"status\":201}},"
+				+ "{\"index\":{\"_id\":\"c\",\"status\":429}}]}");
+		assertThat(target.bulk((a + b + c).getBytes("UTF-8"), "/_bulk"), is(true));
+
+		List<StandInElasticsearch.Request> requests = dr.requests();
+		assertThat(requests.size(), is(3));
+		assertThat(requests.get(1).body, is(b + c));
+		assertThat(requests.get(2).body, is(c));
+
+		// still rejected after the retries
+		for (int i = 0; i < 3; i++) {
+			dr.respondNext("{\"errors\":true,\"items\":[{\"index\":{\"status\":429}}]}");
+		}
+		assertThat(target.bulk(a.getBytes("UTF-8"), "/_bulk"), is(false));
+		assertThat(dr.requests().size(), is(6));
+
+		// other failures are not retried
+		dr.respondNext("{\"errors\":true,\"items\":[{\"index\":{\"status\":400}}]}");
+		assertThat(target.bulk(a.getBytes("UTF-8"), "/_bulk"), is(true));
+		assertThat(dr.requests().size(), is(7));
+	}
+
+	@Test
+	public void bulk_keepAlive() throws Exception {
+		ElasticsearchTarget target = new ElasticsearchTarget("dr", dr.node(), "index-");
+		for (int i = 0; i < 3; i++) {
+			assertThat(target.bulk("{}\n".getBytes("UTF-8"), "/_bulk"), is(true));
+		}
+		dr.fail(1, 400);
+		assertThat(target.bulk("{}\n".getBytes("UTF-8"), "/_bulk"), is(false));
+		assertThat(target.bulk("{}\n".getBytes("UTF-8"), "/_bulk"), is(true));
+
+		// one connection for all requests
+		List<StandInElasticsearch.Request> requests = dr.requests();
+		assertThat(requests.size(), is(5));
+		for (StandInElasticsearch.Request request : requests) {
+			assertThat(request.remotePort, is(requests.get(0).remotePort));
+		}
+	}
+
+	@Test
+	public void sendBulkRequest_targets() throws Exception {
+		ElasticsearchReporter reporter = new ElasticsearchReporter(new MetricsRegistry(), es.node(),
+				MetricPredicate.ALL, "index-", null, null, false, false, null);
+		ElasticsearchTarget target = new ElasticsearchTarget("dr", dr.node(), "dr-");
+		reporter.addSink(target);
+
+		reporter.addReportBuffer("counter", "{\"count\":1}", 0, new DateTime(2016, 1, 1, 0, 0, 0));
+		reporter.sendBulkRequest();
+
+		// sent on the thread of the primary
+		List<StandInElasticsearch.Request> requests = es.await(1);
+		assertThat(requests.size(), is(1));
+		assertThat(requests.get(0).path, is("/index-2016.01.01/_bulk"));
+		String[] lines = requests.get(0).body.split("\n");
+		assertThat(JsonPath.using(jsonConf).parse(lines[0]).read("$.index._index"), is(nullValue()));
+		assertThat(JsonPath.using(jsonConf).parse(lines[0]).read("$.index._type", String.class), is("counter"));
+
+		for (int i = 0; i < 50 && dr.requests().size() < 1; i++) {
+			Thread.sleep(100);
+		}
+		requests = dr.requests();
+		assertThat(requests.size(), is(1));
+		assertThat(requests.get(0).path, is("/dr-2016.01.01/_bulk"));
+		assertThat(requests.get(0).body, is(es.requests().get(0).body));
+
+		reporter.shutdown();
+	}
+}
@@ -0,0 +1,163 @@
+package com.behase.kafka;
+
+import com.yammer.metrics.core.Gauge;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class GaugeEvaluatorTest {
+	private GaugeEvaluator evaluator = new GaugeEvaluator(20, 2, 3);
+
+	@After
+	public void after() {
+		evaluator.shutdown();
+	}
+
+	private static class SlowGauge extends Gauge<Integer> {
+		private final AtomicInteger calls = new AtomicInteger();
+		private volatile long sleepMillis;
+
+		@Override
+		public Integer value() {
+			try {
+				Thread.sleep(sleepMillis);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return calls.incrementAndGet();
+		}
+	}
+
+	@Test
+	public void fastGauge() {
+		SlowGauge gauge = new SlowGauge();
+
+		GaugeEvaluator.State state = evaluate(gauge);
+		assertThat(state.getValue(), is((Object)1));
+		assertThat(state.isStale(), is(false));
+		assertThat(evaluate(gauge).getValue(), is((Object)2));
+	}
+
+	@Test
+	public void slowGauge() throws Exception {
+		SlowGauge gauge = new SlowGauge();
+		gauge.sleepMillis = 100;
+
+		// the first evaluation is time-boxed too
+		GaugeEvaluator.State state = evaluate(gauge);
+		assertThat(state.getValue(), is(nullValue()));
+		assertThat(state.isStale(), is(true));
+
+		// still running
+		assertThat(evaluate(gauge).isStale(), is(true));
+
+		Thread.sleep(200);
+		state = evaluate(gauge);
+		assertThat(state.getValue(), is((Object)1));
+		assertThat(state.isStale(), is(false));
+		assertThat(state.getCostNanos() > 20000000L, is(true));
+		assertThat(state.isDemoted(), is(false));
+
+		// time-boxed, last good value is used
+		state = evaluate(gauge);
+		assertThat(state.getValue(), is((Object)1));
+		assertThat(state.isStale(), is(true));
+
+		Thread.sleep(200);
+		state = evaluate(gauge);
+		assertThat(state.getValue(), is((Object)2));
+		assertThat(state.isStale(), is(false));
+		assertThat(state.isDemoted(), is(true));
+
+		// demoted, skipped for 2 ticks
+		gauge.sleepMillis = 0;
+		assertThat(evaluate(gauge).isStale(), is(true));
+		assertThat(evaluate(gauge).isStale(), is(true));
+		state = evaluate(gauge);
+		assertThat(state.getValue(), is((Object)3));
+		assertThat(state.isDemoted(), is(false));
+	}
+
+	@Test
+	public void fastGaugeBecomesSlow() throws Exception {
+		SlowGauge gauge = new SlowGauge();
+		assertThat(evaluate(gauge).getValue(), is((Object)1));
+		assertThat(evaluate(gauge).getValue(), is((Object)2));
+
+		// bounded although it was fast before
+		gauge.sleepMillis = 500;
+		long start = System.nanoTime();
+		GaugeEvaluator.State state = evaluate(gauge);
+		assertThat(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(250), is(true));
+		assertThat(state.getValue(), is((Object)2));
+		assertThat(state.isStale(), is(true));
+
+		// fast again, evaluated as usual
+		gauge.sleepMillis = 0;
+		Thread.sleep(600);
+		assertThat(evaluate(gauge).getValue(), is((Object)3));
+		state = evaluate(gauge);
+		assertThat(state.getValue(), is((Object)4));
+		assertThat(state.isStale(), is(false));
+	}
+
+	@Test
+	public void hungGauges() throws Exception {
+		evaluator = new GaugeEvaluator(100, 2, 3, 3);
+		final CountDownLatch latch = new CountDownLatch(1);
+		List<Gauge<Integer>> hung = new ArrayList<Gauge<Integer>>();
+		for (int i = 0; i < 3; i++) {
+			hung.add(new Gauge<Integer>() {
+				@Override
+				public Integer value() {
+					try {
+						latch.await();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+					return 0;
+				}
+			});
+		}
+		SlowGauge fast = new SlowGauge();
+		try {
+			// the tick waits the budget in total, not per gauge
+			long start = System.nanoTime();
+			evaluator.beginTick();
+			for (Gauge<Integer> gauge : hung) {
+				assertThat(evaluator.evaluate(gauge).isStale(), is(true));
+			}
+			assertThat(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(250), is(true));
+
+			// all threads are hung, nothing is queued behind them
+			assertThat(evaluate(fast).isStale(), is(true));
+			assertThat(fast.calls.get(), is(0));
+
+			// one thread is free again
+			latch.countDown();
+			Thread.sleep(100);
+			for (Gauge<Integer> gauge : hung) {
+				assertThat(evaluate(gauge).isStale(), is(false));
+			}
+			GaugeEvaluator.State state = evaluate(fast);
+			assertThat(state.getValue(), is((Object)1));
+			assertThat(state.isStale(), is(false));
+		} finally {
+			latch.countDown();
+		}
+	}
+
+	private GaugeEvaluator.State evaluate(Gauge<?> gauge) {
+		evaluator.beginTick();
+		return evaluator.evaluate(gauge);
+	}
+}
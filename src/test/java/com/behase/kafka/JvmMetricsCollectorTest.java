@@ -0,0 +1,78 @@
+package com.behase.kafka;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.jayway.jsonpath.Configuration;
+import com.jayway.jsonpath.DocumentContext;
+import com.jayway.jsonpath.JsonPath;
+import com.jayway.jsonpath.Option;
+import com.yammer.metrics.core.VirtualMachineMetrics;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.StringWriter;
+import java.util.List;
+
+import static org.hamcrest.Matchers.hasItem;
+import static org.hamcrest.Matchers.hasItems;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class JvmMetricsCollectorTest {
+	private Configuration pathConf = Configuration.defaultConfiguration().addOptions(Option.AS_PATH_LIST);
+	private Configuration jsonConf = Configuration.defaultConfiguration().addOptions(Option.DEFAULT_PATH_LEAF_TO_NULL);
+	private static volatile byte[] garbage;
+
+	@Test
+	public void collect() throws Exception {
+		JvmMetricsCollector collector = new JvmMetricsCollector(VirtualMachineMetrics.getInstance(), 3);
+
+		List<String> first = collect(collector);
+		assertThat(first, hasItems("$['memory.heap_usage']", "$['thread_count']", "$['thread_states.runnable']"));
+
+		List<String> second = collect(collector);
+		assertThat(second, hasItems("$['memory.heap_usage']", "$['thread_count']"));
+		assertThat(second, not(hasItem("$['thread_states.runnable']")));
+		for (String path : second) {
+			if (path.startsWith("$['gc.") && path.endsWith(".time']")) {
+				assertThat(second, hasItem(path.replace(".time']", ".time_delta']")));
+			}
+		}
+
+		collect(collector);
+		assertThat(collect(collector), hasItem("$['thread_states.runnable']"));
+	}
+
+	@Test
+	public void collect_allocation() throws Exception {
+		JvmMetricsCollector collector = new JvmMetricsCollector(VirtualMachineMetrics.getInstance(), 1);
+		DocumentContext first = JsonPath.using(jsonConf).parse(collectJson(collector));
+		Assume.assumeTrue(first.read("$['memory.heap_usage']") != null);
+		assertThat(first.read("$['memory.allocated_bytes']"), is(nullValue()));
+
+		// far more than one young generation
+		for (int i = 0; i < 2000; i++) {
+			garbage = new byte[1024 * 1024];
+		}
+		DocumentContext second = JsonPath.using(jsonConf).parse(collectJson(collector));
+		Long allocated = second.read("$['memory.allocated_bytes']", Long.class);
+		Assume.assumeTrue(allocated != null);
+		assertThat(allocated >= 2000L * 1024 * 1024, is(true));
+	}
+
+	private List<String> collect(JvmMetricsCollector collector) throws Exception {
+		return JsonPath.using(pathConf).parse(collectJson(collector)).read("$..*");
+	}
+
+	private String collectJson(JvmMetricsCollector collector) throws Exception {
+		StringWriter writer = new StringWriter();
+		JsonGenerator json = new JsonFactory().createGenerator(writer);
+		json.writeStartObject();
+		collector.collect(json);
+		json.writeEndObject();
+		json.flush();
+		return writer.toString();
+	}
+}
@@ -0,0 +1,130 @@
+package com.behase.kafka;
+
+import com.jayway.jsonpath.Configuration;
+import com.jayway.jsonpath.DocumentContext;
+import com.jayway.jsonpath.JsonPath;
+import com.jayway.jsonpath.Option;
+import org.apache.kafka.common.MetricName;
+import org.apache.kafka.common.metrics.Measurable;
+import org.apache.kafka.common.metrics.MetricConfig;
+import kafka.utils.VerifiableProperties;
+import org.apache.kafka.common.metrics.Metrics;
+import org.joda.time.DateTime;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+public class KafkaElasticsearchClientMetricsReporterTest {
+	private Configuration jsonConf = Configuration.defaultConfiguration().addOptions(Option.DEFAULT_PATH_LEAF_TO_NULL);
+	private Map<String, Object> configs;
+	private KafkaElasticsearchClientMetricsReporter clientReporter;
+	private Metrics metrics;
+
+	@Before
+	public void before() {
+		configs = new HashMap<String, Object>();
+		configs.put("kafka.elasticsearch.metrics.nodes", "127.0.0.1:9200");
+		configs.put("kafka.elasticsearch.metrics.indexPrefix", "index-");
+		configs.put("client.id", "producer-1");
+
+		clientReporter = new KafkaElasticsearchClientMetricsReporter();
+		clientReporter.configure(configs);
+
+		metrics = new Metrics();
+		metrics.addReporter(clientReporter);
+	}
+
+	@Test
+	public void printKafkaMetrics() {
+		Map<String, String> tags = new HashMap<String, String>();
+		tags.put("client-id", "producer-1");
+		MetricName metricName = new MetricName("record-send-rate", "producer-metrics", "", tags);
+		metrics.addMetric(metricName, new Measurable() {
+			@Override
+			public double measure(MetricConfig config, long now) {
+				return 1.5;
+			}
+		});
+
+		ElasticsearchReporter reporter = clientReporter.reporter;
+		reporter.printKafkaMetrics(DateTime.now());
+		String[] buf = reporter.buffer.toString().split("\n");
+		assertThat(buf.length, is(2));
+
+		assertThat(JsonPath.using(jsonConf).parse(buf[0]).read("$.index._type", String.class), is("kafka_metric"));
+		DocumentContext context = JsonPath.using(jsonConf).parse(buf[1]);
+		assertThat(context.read("$.@group", String.class), is("producer_metrics"));
+		assertThat(context.read("$.@name", String.class), is("record_send_rate"));
+		assertThat(context.read("$.@tags.client_id", String.class), is("producer_1"));
+		assertThat(context.read("$.value", Double.class), is(1.5));
+	}
+
+	@Test
+	public void phaseKey() {
+		assertThat(clientReporter.reporter.phaseKey, is(ElasticsearchReporter.localAddresses() + "/producer-1"));
+	}
+
+	@Test
+	public void metricRemoval() {
+		MetricName metricName = new MetricName("name", "group");
+		metrics.addMetric(metricName, new Measurable() {
+			@Override
+			public double measure(MetricConfig config, long now) {
+				return 1.0;
+			}
+		});
+		int size = clientReporter.reporter.kafkaMetrics.size();
+
+		clientReporter.metricRemoval(metrics.metrics().get(metricName));
+		assertThat(clientReporter.reporter.kafkaMetrics.size(), is(size - 1));
+	}
+
+	@Test
+	public void attachToBrokerReporter() throws Exception {
+		StandInElasticsearch es = new StandInElasticsearch();
+		Properties properties = new Properties();
+		properties.setProperty("kafka.elasticsearch.metrics.nodes", es.node());
+		properties.setProperty("kafka.elasticsearch.metrics.reporter.enabled", "true");
+		properties.setProperty("kafka.elasticsearch.metrics.getVmInfo", "false");
+		KafkaElasticsearchMetricsReporter brokerReporter = new KafkaElasticsearchMetricsReporter();
+		brokerReporter.init(new VerifiableProperties(properties));
+		try {
+			KafkaElasticsearchClientMetricsReporter attached = new KafkaElasticsearchClientMetricsReporter();
+			attached.configure(configs);
+			Metrics brokerMetrics = new Metrics();
+			brokerMetrics.addReporter(attached);
+			MetricName metricName = new MetricName("request-rate", "socket-server-metrics");
+			brokerMetrics.addMetric(metricName, new Measurable() {
+				@Override
+				public double measure(MetricConfig config, long now) {
+					return 1.0;
+				}
+			});
+
+			assertThat(attached.reporter, is(sameInstance(brokerReporter.reporter)));
+			assertThat(attached.running, is(false));
+			assertThat(brokerReporter.reporter.kafkaMetrics.containsKey(metricName), is(true));
+
+			// detached, the broker reporter keeps running
+			attached.close();
+			assertThat(brokerReporter.reporter.kafkaMetrics.isEmpty(), is(true));
+			assertThat(brokerReporter.running, is(true));
+		} finally {
+			brokerReporter.stopReporter();
+			es.stop();
+		}
+
+		// not attached to a stopped reporter
+		assertThat(KafkaElasticsearchMetricsReporter.getBrokerReporter(), is(nullValue()));
+		assertThat(clientReporter.reporter, is(not(sameInstance(brokerReporter.reporter))));
+	}
+}
@@ -0,0 +1,75 @@
+package com.behase.kafka;
+
+import com.yammer.metrics.core.MetricName;
+import org.junit.Test;
+
+import static com.behase.kafka.LoadShedder.Priority.BEST_EFFORT;
+import static com.behase.kafka.LoadShedder.Priority.CRITICAL;
+import static com.behase.kafka.LoadShedder.Priority.NORMAL;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class LoadShedderTest {
+	@Test
+	public void classify() {
+		LoadShedder shedder = new LoadShedder(0, 0,
+				"kafka.network:RequestMetrics:*, kafka.server:ReplicaManager:UnderReplicatedPartitions", "kafka.log");
+
+		assertThat(shedder.classify(new MetricName("kafka.network", "RequestMetrics", "TotalTimeMs", "request.Produce")),
+				is(CRITICAL));
+		assertThat(shedder.classify(new MetricName("kafka.server", "ReplicaManager", "UnderReplicatedPartitions")),
+				is(CRITICAL));
+		assertThat(shedder.classify(new MetricName("kafka.server", "ReplicaManager", "PartitionCount")), is(NORMAL));
+		assertThat(shedder.classify(new MetricName("kafka.log", "Log", "Size", "topic.test.partition.0")),
+				is(BEST_EFFORT));
+	}
+
+	@Test
+	public void drainTo_withinBudget() throws Exception {
+		LoadShedder shedder = new LoadShedder(0, 10, null, null);
+		shedder.add(NORMAL, "a", "1");
+		shedder.add(CRITICAL, "b", "2");
+
+		StringBuilder out = new StringBuilder();
+		shedder.drainTo(out);
+		assertThat(out.toString(), is("b\n2\na\n1\n"));
+		assertThat(shedder.isShedding(), is(false));
+		assertThat(shedder.getAdmittedDocs(), is(2));
+		assertThat(shedder.getAdmittedBytes(), is(8L));
+	}
+
+	@Test
+	public void drainTo_shedLowerFirst() throws Exception {
+		LoadShedder shedder = new LoadShedder(0, 3, null, null);
+		for (int tick = 0; tick < 2; tick++) {
+			shedder.add(BEST_EFFORT, "e", "0");
+			shedder.add(NORMAL, "n", "0");
+			shedder.add(NORMAL, "n", "1");
+			shedder.add(NORMAL, "n", "2");
+			shedder.add(CRITICAL, "c", "0");
+
+			StringBuilder out = new StringBuilder();
+			shedder.drainTo(out);
+			// the sampled part of NORMAL rotates across ticks
+			assertThat(out.toString(), is(tick == 0 ? "c\n0\nn\n0\nn\n1\n" : "c\n0\nn\n2\nn\n0\n"));
+			assertThat(shedder.getShedDocs(CRITICAL), is(0L));
+			assertThat(shedder.getShedDocs(NORMAL), is(1L));
+			assertThat(shedder.getShedDocs(BEST_EFFORT), is(1L));
+			assertThat(shedder.getShedBytes(BEST_EFFORT), is(4L));
+		}
+	}
+
+	@Test
+	public void drainTo_bytes() throws Exception {
+		LoadShedder shedder = new LoadShedder(10, 0, null, null);
+		shedder.add(CRITICAL, "c", "0123");
+		shedder.add(NORMAL, "n", "0123");
+		shedder.add(BEST_EFFORT, "e", "0");
+
+		StringBuilder out = new StringBuilder();
+		shedder.drainTo(out);
+		assertThat(out.toString(), is("c\n0123\n"));
+		assertThat(shedder.getShedDocs(NORMAL), is(1L));
+		assertThat(shedder.getShedDocs(BEST_EFFORT), is(1L));
+	}
+}
@@ -0,0 +1,69 @@
+package com.behase.kafka;
+
+import com.yammer.metrics.core.Metric;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.MetricPredicate;
+import com.yammer.metrics.core.MetricsRegistry;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+public class MetricIndexTest {
+	private MetricsRegistry metrics;
+	private MetricIndex index;
+
+	@Before
+	public void before() {
+		metrics = new MetricsRegistry();
+		index = new MetricIndex(new MetricPredicate() {
+			@Override
+			public boolean matches(MetricName name, Metric metric) {
+				return !name.getName().startsWith("ignored");
+			}
+		});
+	}
+
+	@Test
+	public void replayAndEvents() {
+		metrics.newCounter(new MetricName("group", "type", "counter1"));
+		metrics.addListener(index);
+		assertThat(index.size(), is(1));
+
+		for (int i = 0; i < 100; i++) {
+			metrics.newCounter(new MetricName("group", "type", "counter" + (i + 2)));
+		}
+		metrics.newCounter(new MetricName("group", "type", "ignored"));
+		assertThat(index.size(), is(101));
+
+		metrics.removeMetric(new MetricName("group", "type", "counter1"));
+		metrics.removeMetric(new MetricName("group", "type", "counter50"));
+		metrics.removeMetric(new MetricName("group", "type", "ignored"));
+
+		Set<String> names = new HashSet<String>();
+		for (MetricIndex.Entry entry : index.entries()) {
+			names.add(entry.name.getName());
+		}
+		assertThat(names.size(), is(99));
+		assertThat(names.contains("counter1"), is(false));
+		assertThat(names.contains("counter50"), is(false));
+		assertThat(names.contains("counter101"), is(true));
+	}
+
+	@Test
+	public void entries_notCopiedWithoutChange() {
+		metrics.addListener(index);
+		metrics.newCounter(new MetricName("group", "type", "counter"));
+
+		MetricIndex.Entry[] entries = index.entries();
+		assertThat(index.entries(), is(sameInstance(entries)));
+
+		metrics.newCounter(new MetricName("group", "type", "counter2"));
+		assertThat(index.entries().length, is(2));
+	}
+}
@@ -0,0 +1,32 @@
+package com.behase.kafka;
+
+import com.yammer.metrics.core.MetricName;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class MetricProfilerTest {
+	@Test
+	public void rotate() {
+		MetricProfiler profiler = new MetricProfiler(3);
+		for (int tick = 0; tick < 2; tick++) {
+			for (int i = 0; i < 100; i++) {
+				profiler.record(new MetricName("group", "type", "name" + i), (i * 37) % 100, i);
+			}
+		}
+
+		List<MetricProfiler.Cost> top = profiler.rotate();
+		assertThat(top.size(), is(3));
+		assertThat(top.get(0).getAvgNanos(), is(99L));
+		assertThat(top.get(1).getAvgNanos(), is(98L));
+		assertThat(top.get(2).getAvgNanos(), is(97L));
+		assertThat(top.get(0).getSamples(), is(2));
+		assertThat(profiler.getTop(), is(top));
+
+		// new window
+		assertThat(profiler.rotate().size(), is(0));
+	}
+}
@@ -0,0 +1,130 @@
+package com.behase.kafka;
+
+import com.yammer.metrics.core.MetricPredicate;
+import com.yammer.metrics.core.MetricsRegistry;
+import org.joda.time.DateTime;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import static org.hamcrest.Matchers.endsWith;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.hamcrest.Matchers.startsWith;
+import static org.junit.Assert.assertThat;
+
+public class NdjsonFileSinkTest {
+	private File dir;
+
+	@Before
+	public void before() throws Exception {
+		dir = File.createTempFile("ndjson-file-sink", "");
+		dir.delete();
+	}
+
+	@After
+	public void after() {
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		dir.delete();
+	}
+
+	@Test
+	public void acquire() {
+		NdjsonFileSink sink = NdjsonFileSink.acquire("file", dir, "m-", false, 1024, 0);
+		assertThat(NdjsonFileSink.acquire("file", dir, "m-", false, 1024, 0), is(sameInstance(sink)));
+		NdjsonFileSink other = NdjsonFileSink.acquire("file", dir, "n-", false, 1024, 0);
+		assertThat(other, is(not(sameInstance(sink))));
+		other.close();
+
+		// still held by the second holder
+		sink.close();
+		assertThat(NdjsonFileSink.acquire("file", dir, "m-", false, 1024, 0), is(sameInstance(sink)));
+		sink.close();
+		sink.close();
+		NdjsonFileSink reopened = NdjsonFileSink.acquire("file", dir, "m-", false, 1024, 0);
+		assertThat(reopened, is(not(sameInstance(sink))));
+		reopened.close();
+	}
+
+	@Test
+	public void append_rotate() throws Exception {
+		NdjsonFileSink sink = new NdjsonFileSink("file", dir, "m-", false, 10, 2);
+		sink.append("{\"a\":1}\n".getBytes("UTF-8"), "2016.01.01", 1000L);
+		sink.append("{\"a\":2}\n".getBytes("UTF-8"), "2016.01.01", 2000L);
+		// rolled by size
+		sink.append("{\"a\":3}\n".getBytes("UTF-8"), "2016.01.01", 3000L);
+		// rolled by period, the oldest one is deleted
+		sink.append("{\"a\":4}\n".getBytes("UTF-8"), "2016.01.02", 4000L);
+		sink.closeSegment();
+
+		assertThat(names(), is(Arrays.asList("m-2016.01.01-3000.ndjson", "m-2016.01.02-4000.ndjson")));
+		assertThat(read("m-2016.01.01-3000.ndjson"), is("{\"a\":3}\n"));
+		assertThat(read("m-2016.01.02-4000.ndjson"), is("{\"a\":4}\n"));
+	}
+
+	@Test
+	public void append_gzip() throws Exception {
+		NdjsonFileSink sink = new NdjsonFileSink("file", dir, "m-", true, 1024, 0);
+		sink.append("{\"a\":1}\n".getBytes("UTF-8"), "2016.01.01", 1000L);
+		sink.append("{\"a\":2}\n".getBytes("UTF-8"), "2016.01.01", 2000L);
+		assertThat(names(), is(Arrays.asList("m-2016.01.01-1000.ndjson.gz.inprogress")));
+
+		sink.closeSegment();
+		assertThat(names(), is(Arrays.asList("m-2016.01.01-1000.ndjson.gz")));
+		assertThat(read("m-2016.01.01-1000.ndjson.gz"), is("{\"a\":1}\n{\"a\":2}\n"));
+	}
+
+	@Test
+	public void sendBulkRequest_sink() throws Exception {
+		ElasticsearchReporter reporter = new ElasticsearchReporter(new MetricsRegistry(), null, MetricPredicate.ALL,
+				"index-", null, null, false, false, null);
+		reporter.setPrimaryEnabled(false);
+		reporter.addSink(new NdjsonFileSink("file", dir, "m-", false, 1024, 0));
+
+		reporter.addReportBuffer("counter", "{\"count\":1}", 0, new DateTime(2016, 1, 1, 0, 0, 0));
+		reporter.sendBulkRequest();
+		reporter.shutdown();
+
+		List<String> names = names();
+		assertThat(names.size(), is(1));
+		assertThat(names.get(0), startsWith("m-2016.01.01-"));
+		assertThat(names.get(0), endsWith(".ndjson"));
+		assertThat(read(names.get(0)), is("{\"index\":{\"_type\":\"counter\"}}\n{\"count\":1}\n"));
+	}
+
+	private List<String> names() {
+		String[] names = dir.list();
+		Arrays.sort(names);
+		return new ArrayList<String>(Arrays.asList(names));
+	}
+
+	private String read(String name) throws Exception {
+		InputStream is = new FileInputStream(new File(dir, name));
+		if (name.endsWith(".gz")) {
+			is = new GZIPInputStream(is);
+		}
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		byte[] buf = new byte[4096];
+		int n;
+		while ((n = is.read(buf)) > 0) {
+			os.write(buf, 0, n);
+		}
+		is.close();
+		return os.toString("UTF-8");
+	}
+}
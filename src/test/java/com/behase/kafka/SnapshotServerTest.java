@@ -0,0 +1,115 @@
+package com.behase.kafka;
+
+import com.yammer.metrics.core.MetricsRegistry;
+import org.joda.time.DateTime;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class SnapshotServerTest {
+	private static final String NDJSON =
+			"{\"@timestamp\":\"2015-12-25T00:00:00.000Z\",\"@group\":\"kafka.server\",\"@type\":\"BrokerTopicMetrics\","
+					+ "\"@name\":\"MessagesInPerSec\",\"@scope\":\"topic.test\",\"hostname\":\"broker1\",\"count\":10,"
+					+ "\"m1_rate\":1.5}\n"
+					+ "{\"@timestamp\":\"2015-12-25T00:00:00.000Z\",\"@name\":\"jvm\",\"hostname\":\"broker1\","
+					+ "\"memory.heap_usage\":0.25,\"@stale\":true}\n";
+
+	private SnapshotServer server;
+
+	@Before
+	public void before() throws Exception {
+		server = new SnapshotServer("127.0.0.1", 0);
+		server.start();
+	}
+
+	@After
+	public void after() {
+		server.stop();
+	}
+
+	@Test
+	public void toText() throws Exception {
+		String text = MetricsSnapshot.toText(NDJSON.getBytes("UTF-8"), 1000L);
+		assertThat(text, is(""
+				+ "kafka_server_BrokerTopicMetrics_MessagesInPerSec_count{_scope=\"topic.test\",hostname=\"broker1\"} 10 1000\n"
+				+ "kafka_server_BrokerTopicMetrics_MessagesInPerSec_m1_rate{_scope=\"topic.test\",hostname=\"broker1\"} 1.5 1000\n"
+				+ "jvm_memory_heap_usage{hostname=\"broker1\"} 0.25 1000\n"
+				+ "jvm__stale{hostname=\"broker1\"} 1 1000\n"));
+	}
+
+	@Test
+	public void serve() throws Exception {
+		assertThat(get("/metrics.ndjson"), is(""));
+
+		MetricsSnapshot snapshot = new MetricsSnapshot(1000L, NDJSON.getBytes("UTF-8"));
+		server.publish(snapshot);
+		assertThat(get("/metrics.ndjson"), is(NDJSON));
+		assertThat(get("/metrics"), containsString("jvm_memory_heap_usage{hostname=\"broker1\"} 0.25 1000\n"));
+
+		// cached, not rebuilt per request
+		byte[] text = snapshot.text();
+		get("/metrics");
+		assertThat(snapshot.text() == text, is(true));
+	}
+
+	@Test
+	public void serve_notFound() throws Exception {
+		HttpURLConnection connection = (HttpURLConnection)new URL(
+				"http://127.0.0.1:" + server.getAddress().getPort() + "/metrics/other").openConnection();
+		assertThat(connection.getResponseCode(), is(404));
+	}
+
+	@Test
+	public void publishSnapshot() throws Exception {
+		ElasticsearchReporter reporter = new ElasticsearchReporter(new MetricsRegistry(), "localhost:9200", null, null, null, null,
+				false, false, null);
+		reporter.setSnapshotServer(server);
+		reporter.addReportBuffer("counter", "{\"@name\":\"a\",\"count\":1}", 0, DateTime.now());
+		reporter.publishSnapshot(new DateTime(1000L));
+
+		assertThat(get("/metrics.ndjson"), is("{\"@name\":\"a\",\"count\":1}\n"));
+		assertThat(get("/metrics"), is("a_count 1 1000\n"));
+	}
+
+	@Test
+	public void publishSnapshot_admittedOnly() throws Exception {
+		ElasticsearchReporter reporter = new ElasticsearchReporter(new MetricsRegistry(), "localhost:9200", null, null, null, null,
+				false, false, null);
+		reporter.setSnapshotServer(server);
+		reporter.setLoadShedder(new LoadShedder(0, 1, null, null));
+		reporter.addReportBuffer("counter", "{\"@name\":\"a\",\"count\":1}", 0, new DateTime(1000L));
+		reporter.addReportBuffer("counter", "{\"@name\":\"b\",\"count\":2}", 0, new DateTime(1000L));
+		reporter.applyBudget(new DateTime(1000L));
+		reporter.publishSnapshot(new DateTime(1000L));
+
+		// b was shed, the shed document follows
+		String[] lines = get("/metrics.ndjson").split("\n");
+		assertThat(lines.length, is(2));
+		assertThat(lines[0], is("{\"@name\":\"a\",\"count\":1}"));
+		assertThat(lines[1].contains("\"@name\":\"shed\""), is(true));
+	}
+
+	private String get(String path) throws Exception {
+		HttpURLConnection connection = (HttpURLConnection)new URL(
+				"http://127.0.0.1:" + server.getAddress().getPort() + path).openConnection();
+		assertThat(connection.getResponseCode(), is(200));
+		InputStream is = connection.getInputStream();
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		byte[] buf = new byte[4096];
+		int n;
+		while ((n = is.read(buf)) > 0) {
+			os.write(buf, 0, n);
+		}
+		is.close();
+		return os.toString("UTF-8");
+	}
+}
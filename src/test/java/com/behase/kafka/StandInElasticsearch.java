@@ -0,0 +1,122 @@
+package com.behase.kafka;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Minimal local HTTP server standing in for Elasticsearch. It records every request and answers 200 (or a canned body).
+ */
+public class StandInElasticsearch {
+	public static class Request {
+		public final String method;
+		public final String path;
+		public final String body;
+		public final int remotePort;
+
+		public Request(String method, String path, String body, int remotePort) {
+			this.method = method;
+			this.path = path;
+			this.body = body;
+			this.remotePort = remotePort;
+		}
+	}
+
+	private final HttpServer server;
+	private final List<Request> requests = Collections.synchronizedList(new ArrayList<Request>());
+	private final Map<String, String> responses = Collections.synchronizedMap(new HashMap<String, String>());
+	private final Queue<String> nextResponses = new ConcurrentLinkedQueue<String>();
+	private final AtomicInteger failures = new AtomicInteger();
+	private volatile int failureStatus;
+
+	public StandInElasticsearch() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				String body = read(exchange.getRequestBody());
+				String path = exchange.getRequestURI().toString();
+				requests.add(new Request(exchange.getRequestMethod(), path, body, exchange.getRemoteAddress().getPort()));
+
+				String response = nextResponses.poll();
+				if (response == null) {
+					response = responses.get(exchange.getRequestMethod() + " " + path);
+				}
+				byte[] bytes = (response == null ? "{}" : response).getBytes("UTF-8");
+				int status = failures.getAndDecrement() > 0 ? failureStatus : 200;
+				exchange.sendResponseHeaders(status, bytes.length);
+				OutputStream os = exchange.getResponseBody();
+				os.write(bytes);
+				os.close();
+			}
+		});
+		server.start();
+	}
+
+	public String node() {
+		return "127.0.0.1:" + server.getAddress().getPort();
+	}
+
+	public void respond(String method, String path, String body) {
+		responses.put(method + " " + path, body);
+	}
+
+	/**
+	 * Answer the next request with this body, before the canned ones.
+	 */
+	public void respondNext(String body) {
+		nextResponses.add(body);
+	}
+
+	/**
+	 * Answer the next count requests with status.
+	 */
+	public void fail(int count, int status) {
+		failureStatus = status;
+		failures.set(count);
+	}
+
+	/**
+	 * Wait (at most 5s) for count requests, sent asynchronously.
+	 */
+	public List<Request> await(int count) throws InterruptedException {
+		for (int i = 0; i < 50 && requests.size() < count; i++) {
+			Thread.sleep(100);
+		}
+		return requests();
+	}
+
+	public List<Request> requests() {
+		synchronized (requests) {
+			return new ArrayList<Request>(requests);
+		}
+	}
+
+	public void stop() {
+		server.stop(0);
+	}
+
+	private static String read(InputStream is) throws IOException {
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		byte[] buf = new byte[8192];
+		int n;
+		while ((n = is.read(buf)) != -1) {
+			os.write(buf, 0, n);
+		}
+		return os.toString("UTF-8");
+	}
+}
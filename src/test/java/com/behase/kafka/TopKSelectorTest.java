@@ -0,0 +1,120 @@
+package com.behase.kafka;
+
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.MetricsRegistry;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class TopKSelectorTest {
+	@Test
+	public void rankByRate() {
+		MetricsRegistry metrics = new MetricsRegistry();
+		List<MetricIndex.Entry> entries = new ArrayList<MetricIndex.Entry>();
+		List<Counter> counters = new ArrayList<Counter>();
+		for (int i = 0; i < 10; i++) {
+			MetricName name = new MetricName("group", "type", "bytes", "partition." + i);
+			Counter counter = metrics.newCounter(name);
+			counter.inc(1000 - i);
+			counters.add(counter);
+			entries.add(new MetricIndex.Entry(name, counter));
+		}
+		entries.add(new MetricIndex.Entry(new MetricName("group", "type", "other", "partition.0"), counters.get(0)));
+
+		TopKSelector selector = new TopKSelector("group:type:bytes", 1, TopKSelector.RankBy.RATE);
+		selector.beginTick();
+		for (MetricIndex.Entry entry : entries) {
+			offer(selector, entry);
+		}
+
+		counters.get(7).inc(50);
+		selector.beginTick();
+		int offered = 0;
+		for (MetricIndex.Entry entry : entries) {
+			if (offer(selector, entry)) {
+				offered++;
+			}
+		}
+		assertThat(offered, is(10));
+
+		TopKSelector.Family family = selector.families().iterator().next();
+		assertThat(family.top().size(), is(1));
+		assertThat(family.top().get(0).getEntry().name.getScope(), is("partition.7"));
+		assertThat(family.top().get(0).getScore(), is(50.0));
+		assertThat(family.getOthersCount(), is(9));
+		assertThat(family.getOthersSum(), is(0.0));
+	}
+
+	@Test
+	public void rankByRate_reset() {
+		MetricsRegistry metrics = new MetricsRegistry();
+		MetricName name = new MetricName("group", "type", "bytes", "partition.0");
+		Counter counter = metrics.newCounter(name);
+		counter.inc(100);
+		MetricIndex.Entry entry = new MetricIndex.Entry(name, counter);
+
+		TopKSelector selector = new TopKSelector("group:type:bytes", 1, TopKSelector.RankBy.RATE);
+		selector.beginTick();
+		offer(selector, entry);
+		// reported and cleared (enableReset)
+		counter.clear();
+		selector.reset(name);
+
+		counter.inc(30);
+		selector.beginTick();
+		offer(selector, entry);
+		TopKSelector.Family family = selector.families().iterator().next();
+		assertThat(family.top().get(0).getScore(), is(30.0));
+	}
+
+	@Test
+	public void rankByRate_fractionalGauge() {
+		MetricsRegistry metrics = new MetricsRegistry();
+		final double[] ratios = {0.1, 0.2};
+		List<MetricIndex.Entry> entries = new ArrayList<MetricIndex.Entry>();
+		for (int i = 0; i < 2; i++) {
+			final int index = i;
+			MetricName name = new MetricName("group", "type", "ratio", "partition." + i);
+			entries.add(new MetricIndex.Entry(name, metrics.newGauge(name, new Gauge<Double>() {
+				@Override
+				public Double value() {
+					return ratios[index];
+				}
+			})));
+		}
+
+		TopKSelector selector = new TopKSelector("group:type:ratio", 1, TopKSelector.RankBy.RATE);
+		selector.beginTick();
+		for (MetricIndex.Entry entry : entries) {
+			offer(selector, entry);
+		}
+		ratios[0] = 0.4;
+		ratios[1] = 0.6;
+		selector.beginTick();
+		for (MetricIndex.Entry entry : entries) {
+			offer(selector, entry);
+		}
+
+		TopKSelector.Family family = selector.families().iterator().next();
+		assertThat(family.top().get(0).getEntry().name.getScope(), is("partition.1"));
+		assertThat(family.top().get(0).getScore(), is(closeTo(0.4, 1e-9)));
+		assertThat(family.getOthersSum(), is(closeTo(0.3, 1e-9)));
+		assertThat(family.others().get(0).name.getScope(), is("partition.0"));
+	}
+
+	private static boolean offer(TopKSelector selector, MetricIndex.Entry entry) {
+		TopKSelector.Family family = selector.familyOf(entry.name);
+		if (family == null) {
+			return false;
+		}
+		selector.offer(family, entry, TopKSelector.value(entry.metric), null);
+		return true;
+	}
+}